@@ -115,7 +115,7 @@
 
 ; TRANSACTIONS
 
-; Extend ref to deal with :resolve option.
+; Extend ref to deal with :resolve, :adaptive-history and :combine options.
 (alter-var-root #'clojure.core/ref
   (fn [original-ref]
     (fn
@@ -126,4 +126,80 @@
               opts (apply hash-map options)]
           (when (:resolve opts)
             (.setResolve r (:resolve opts)))
+          (when (:adaptive-history opts)
+            (.setAdaptiveHistory r true))
+          (when (:combine opts)
+            (.setCombining r true))
           r)))))
+
+(intern 'clojure.core 'sharded-ref
+  (fn [x combine identity & options]
+    (let [opts (apply hash-map options)]
+      (clojure.lang.ShardedRef. x combine identity (:meta opts)))))
+
+(alter-meta! #'clojure.core/sharded-ref assoc :added "1.0-chocola")
+(alter-meta! #'clojure.core/sharded-ref assoc :arglists
+  '([x combine identity & options]))
+(alter-meta! #'clojure.core/sharded-ref assoc :doc
+  "Creates and returns a sharded Ref with an initial value of x, for hot
+  counters and accumulators. A sharded ref can only be commuted: commutes
+  are applied to one of several cells after the transaction commits,
+  without locking or conflicting with other transactions. Deref combines
+  the cells with combine, an associative and commutative fn with identity
+  as identity element, which must not throw. Commute fns must distribute
+  over combine, e.g. (commute r + n) with combine + and identity 0. If one
+  throws at commit, the transaction doesn't commit.
+  Updates of a sharded ref are not atomic with the rest of the
+  transaction: other transactions can see its other writes slightly before
+  its commutes on the sharded ref. Sharded refs don't support validators or
+  watches. Options: :meta.")
+
+; Extend sync to take transaction options (flags). dosync passes nil.
+(alter-var-root #'clojure.core/sync
+  (fn [_original]
+    (fn [&form &env flags & body]
+      `(. clojure.lang.LockingTransaction
+          (runInTransaction ~flags (fn [] ~@body))))))
+
+(alter-meta! #'clojure.core/sync assoc :doc
+  "transaction-flags => nil or a map of options
+
+  Runs the exprs (in an implicit do) in a transaction that encompasses
+  exprs and any nested calls.  Starts a transaction if none is already
+  running on this thread. Any uncaught exception will abort the
+  transaction and flow out of sync. The exprs may be run more than
+  once, but any effects on Refs will be atomic.
+
+  A sync in a running transaction is a nested transaction: if it
+  conflicts, it is retried on its own when possible, and if an exception
+  flows out of it, its effects on Refs are undone.
+
+  Options (ignored if a transaction is already running):
+    :read-only           if true, the transaction can only read refs
+                         (ref-set, alter and commute throw). It takes no
+                         locks and consumes no commit point.
+    :contention-manager  a clojure.lang.ContentionManager that decides what
+                         happens on conflicts with other transactions.
+                         Defaults to the one set with
+                         clojure.lang.LockingTransaction/setContentionManager.
+    :optimistic-ensure   if true, ensure doesn't block writers of the ref
+                         until this transaction commits; instead, commit
+                         checks that the ref hasn't changed (and retries if
+                         it has). Defaults to
+                         clojure.lang.LockingTransaction/getOptimisticEnsure.
+    :early-validation    if true, the transaction is stopped (and retried) as
+                         soon as another transaction commits a ref it set or
+                         optimistically ensured, as it can't commit anymore,
+                         and its futures are cancelled. Refs it only read
+                         don't stop it. Defaults to
+                         clojure.lang.LockingTransaction/getEarlyValidation.
+    :retry-limit         maximum number of attempts (default 10000).
+    :timeout-ms          maximum time to try to commit, in ms.
+    :inevitable          if true, the transaction waits until no other
+                         inevitable transaction runs, and then runs exactly
+                         once: other transactions can't make it retry, but
+                         wait for it on the refs it reads or writes. commute
+                         behaves like alter, and io! is allowed.
+  A transaction that doesn't commit within these throws a
+  clojure.lang.LockingTransaction$TransactionFailedException, whose
+  getStats has the stats of its attempts, and its futures are cancelled.")
@@ -12,28 +12,102 @@ package clojure.lang;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AFuture implements Callable, Future {
 
-    // Future running in current thread (can be null)
-    final static ThreadLocal<AFuture> CURRENT_FUTURE = new ThreadLocal<AFuture>();
+    // Executor that runs futures: by default Agent.soloExecutor, which uses a
+    // thread per running future. With a ForkJoinPool, a future forked in a
+    // worker goes to that worker's queue, and a future that gets an
+    // unfinished child runs queued work (often that child) in its own thread
+    // while it waits, instead of blocking it. See also VirtualThreads.
+    static volatile ExecutorService executor = Agent.soloExecutor;
+
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // Set the executor for futures forked from now on (null for the default).
+    public static void setExecutor(ExecutorService executor) {
+        AFuture.executor = executor != null ? executor : Agent.soloExecutor;
+    }
+
+    // Lazy forking (off by default): when there are already as many futures
+    // running as cores, or the new future is nested deeper than EAGER_DEPTH,
+    // it isn't handed to the executor right away. The future that forked it
+    // keeps it, and whoever gets it first runs it in their own thread, like
+    // a plain call. If no one has when its parent finishes, the parent
+    // submits it then.
+    // So a deferred future that no one gets only starts once its parent has
+    // finished: the parent must not wait for it by other means (e.g. a
+    // promise it delivers). A ForkJoinPool already forks lazily, so this
+    // doesn't apply to it.
+    static volatile boolean lazy = false;
+
+    public static boolean isLazy() {
+        return lazy;
+    }
+
+    public static void setLazy(boolean lazy) {
+        AFuture.lazy = lazy;
+    }
+
+    static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    // Futures up to this depth are forked eagerly if there are free cores:
+    // in a binary tree of futures, that's about 8 per core.
+    static final int EAGER_DEPTH =
+            32 - Integer.numberOfLeadingZeros(PARALLELISM - 1) + 3;
+    // Number of futures running, counted in lazy mode
+    static final AtomicInteger RUNNING = new AtomicInteger();
+
+    // Runs a future in a ForkJoinPool. It never completes exceptionally:
+    // exceptions are kept in error, and get rethrows them the way a
+    // FutureTask does.
+    static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final AFuture future;
+        Throwable error;
+
+        Task(AFuture future) {
+            this.future = future;
+        }
+
+        protected void compute() {
+            try {
+                future.call();
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+    }
 
 
     // Child futures.
     final Set<Future> children = new HashSet<Future>();
+    // Children forked lazily and not submitted yet (can be null)
+    ArrayList<FutureTask<Object>> pending = null;
+    // Number of futures this one is nested in
+    int depth = 0;
+    // Was this future forked lazily?
+    boolean deferred = false;
     // Transactional context
     TransactionalContext ctx = null;
+    // Where this future queues itself when it's done, for the transactional
+    // context that forked it (can be null)
+    TransactionalContext.Completions completions = null;
 
     // Java Future executing this future.
     // null if executing in main thread or thread outside our control.
-    Future javaFuture = null;
+    // Volatile as it can be cancelled by other transactions.
+    volatile Future javaFuture = null;
 
     // Function executed in this future
     final Callable fn;
     // Result of future (return value of fn)
     Object result;
     // Has the task finished?
-    boolean complete = false;
+    volatile boolean complete = false;
 
 
     // Create a future.
@@ -47,19 +121,21 @@ public class AFuture implements Callable, Future {
     // needed.
     static AFuture createRootFuture() {
         AFuture f = new AFuture(null);
-        CURRENT_FUTURE.set(f);
+        ExecutionContext.current().future = f;
         return f;
     }
 
     static void destructRootFuture() {
-        CURRENT_FUTURE.remove();
+        ExecutionContext ec = ExecutionContext.current();
+        ec.future.submitPending();
+        ec.future = null;
     }
 
     // Get current future.
     // This is null in the main thread and threads created outside our control
     // (e.g. agents).
     static AFuture getCurrent() {
-        return CURRENT_FUTURE.get();
+        return ExecutionContext.current().future;
     }
 
 
@@ -77,43 +153,91 @@ public class AFuture implements Callable, Future {
 
     // Get this thread's transactional context (possibly null).
     static TransactionalContext getContext() {
-        AFuture f = getCurrent();
-        if (f == null)
-            return null;
-        else
-            return f.ctx; // possibly null
+        return ExecutionContext.current().transaction();
     }
 
     // Get this thread's transactional context. Throws exception if no future or
     // transaction is running in the current thread.
     static TransactionalContext getContextEx() {
-        TransactionalContext ctx = getContext();
-        if (ctx == null)
-            throw new IllegalStateException("No transaction running");
-        return ctx;
+        return ExecutionContext.current().transactionEx();
     }
 
 
     // Execute future (in this thread).
+    // This thread can be running another future, that is waiting for this
+    // one in a ForkJoinPool: restore its current future and bindings after.
     public Object call() throws Exception {
-        if (CURRENT_FUTURE.get() != null)
-            throw new IllegalStateException("Already in a future");
-
+        ExecutionContext ec = ExecutionContext.current();
+        AFuture previous = ec.future;
+        Object frame = Var.getThreadBindingFrame();
+        boolean counted = lazy;
+        if (counted)
+            RUNNING.incrementAndGet();
         try {
-            CURRENT_FUTURE.set(this);
+            ec.future = this;
             if(ctx != null && !ctx.tx.isNotKilled()) // in a killed tx
                 throw new LockingTransaction.StoppedEx();
             result = fn.call();
             complete = true;
         } finally {
-            CURRENT_FUTURE.remove();
+            if (counted)
+                RUNNING.decrementAndGet();
+            ec.future = previous;
+            Var.resetThreadBindingFrame(frame);
+            submitPending();
+            if (completions != null)
+                completions.add(this);
         }
         return result;
     }
 
-    // Execute future in another thread.
-    public void fork() {
-        javaFuture = Agent.soloExecutor.submit(this);
+    // Execute future in another thread, or with lazy forking maybe later.
+    // parent is the future that forks it (can be null).
+    void fork(AFuture parent) {
+        ExecutorService e = executor;
+        if (e instanceof ForkJoinPool) {
+            Task task = new Task(this);
+            Thread t = Thread.currentThread();
+            if (t instanceof ForkJoinWorkerThread &&
+                    ((ForkJoinWorkerThread) t).getPool() == e)
+                task.fork();
+            else
+                ((ForkJoinPool) e).execute(task);
+            javaFuture = task;
+        } else {
+            FutureTask<Object> task = new FutureTask<Object>(this);
+            if (parent != null && lazy &&
+                    (depth > EAGER_DEPTH || RUNNING.get() >= PARALLELISM)) {
+                deferred = true;
+                javaFuture = task;
+                if (parent.pending == null)
+                    parent.pending = new ArrayList<FutureTask<Object>>();
+                parent.pending.add(task);
+            } else {
+                javaFuture = task;
+                e.execute(task);
+            }
+        }
+    }
+
+    // Submit the children this future deferred that haven't run yet.
+    void submitPending() {
+        if (pending == null)
+            return;
+        for (FutureTask<Object> task : pending) {
+            if (!task.isDone())
+                executor.execute(task);
+        }
+        pending = null;
+    }
+
+    // Run task in this thread, if no one has started it yet.
+    private static void runHere(FutureTask<?> task) {
+        boolean interrupted = Thread.currentThread().isInterrupted();
+        task.run();
+        // Cancelling it interrupts its runner, but that's us: clear it
+        if (!interrupted && task.isCancelled())
+            Thread.interrupted();
     }
 
     // Fork future: outside transaction regular future, in transactional a
@@ -124,16 +248,31 @@ public class AFuture implements Callable, Future {
         if (current == null) {
             // current thread is outside our control, so we can't do anything
         } else {
-            if (inTransaction() && !current.ctx.tx.isNotKilled())
+            child.depth = current.depth + 1;
+            TransactionalContext ctx = current.ctx;
+            if (ctx != null && !ctx.tx.isNotKilled())
                 throw new LockingTransaction.StoppedEx();
 
             current.children.add(child);
-            if (inTransaction()) {
-                child.ctx = new TransactionalContext(current.ctx);
-                current.ctx.children.add(child); // XXX
+            if (ctx != null) {
+                child.ctx = new TransactionalContext(ctx);
+                ctx.children.add(child); // XXX
+                if (ctx.completions == null)
+                    ctx.completions = new TransactionalContext.Completions();
+                child.completions = ctx.completions;
+                if (ctx.tx.cancelFutures) {
+                    LockingTransaction.Info info = ctx.tx.getInfo();
+                    child.fork(current);
+                    info.futures.add(child);
+                    // If the attempt was killed in the meantime, its killer
+                    // might not have seen the child
+                    if (!info.running())
+                        info.abortFutures();
+                    return child;
+                }
             }
         }
-        child.fork();
+        child.fork(current);
         return child;
     }
 
@@ -142,7 +281,11 @@ public class AFuture implements Callable, Future {
     public boolean cancel(boolean mayInterruptIfRunning) {
         if (javaFuture == null)
             throw new IllegalStateException("Can not cancel root thread");
-        return javaFuture.cancel(mayInterruptIfRunning);
+        boolean cancelled = javaFuture.cancel(mayInterruptIfRunning);
+        // If it never runs, call won't queue it
+        if (cancelled && completions != null)
+            completions.add(this);
+        return cancelled;
     }
 
     // Waits if necessary for the computation to complete, and then retrieves
@@ -154,14 +297,11 @@ public class AFuture implements Callable, Future {
         // Note: in future_a, we call future_b.get()
         // => this = future_b; current = future_a
 
-        // Wait for other thread to finish
-        if (javaFuture != null)
-            javaFuture.get(); // sets result
-        // else: result set by call() directly XXX
+        join();
 
         // TODO deal with case that future_b is txional but future_a not
-        if (inTransaction() && this.ctx != null) { // both txional
-            TransactionalContext currentCtx = getContextEx();
+        TransactionalContext currentCtx = getContext();
+        if (currentCtx != null && this.ctx != null) { // both txional
             // Merge 'this' (future b) into 'current' (future a).
             currentCtx.merge(this.ctx);
         }
@@ -169,12 +309,49 @@ public class AFuture implements Callable, Future {
         return result;
     }
 
+    // Wait for this future to finish, without merging it.
+    // Throws ExecutionException if an exception occurred in the future.
+    void join() throws ExecutionException, InterruptedException {
+        // Wait for other thread to finish
+        Future<?> f = javaFuture;
+        if (f instanceof Task) {
+            // Runs it here if no one has started it yet
+            Task task = (Task) f;
+            task.join();
+            if (task.error != null)
+                throw new ExecutionException(task.error);
+        } else if (f != null) {
+            // Run it here if it hasn't started yet (e.g. deferred): we'd
+            // only wait for it anyway
+            if (!f.isDone())
+                runHere((FutureTask<?>) f);
+            f.get(); // sets result
+        }
+        // else: result set by call() directly XXX
+    }
+
+    // Run this future in this thread, if no one has started it yet. Returns
+    // right away otherwise.
+    void runIfUnstarted() {
+        Future<?> f = javaFuture;
+        if (f instanceof Task) {
+            Task task = (Task) f;
+            if (task.tryUnfork()) // only if it's next in this worker's queue
+                task.invoke();
+        } else if (f != null && !f.isDone()) {
+            runHere((FutureTask<?>) f);
+        }
+    }
+
     // Waits if necessary for at most the given time for the computation to
     // complete, and then retrieves its result, if available.
     public Object get(long timeout, TimeUnit unit) throws InterruptedException,
     ExecutionException, TimeoutException {
-        if (javaFuture != null)
-            javaFuture.get(timeout, unit); // Wait until the future has finished
+        Future<?> f = javaFuture;
+        if (deferred && !f.isDone())
+            executor.execute((FutureTask<?>) f); // no-op if it has started
+        if (f != null)
+            f.get(timeout, unit); // Wait until the future has finished
         // This throws a TimeoutException if it does not finish in time.
         return get(); // Delegate to normal get if it has
     }
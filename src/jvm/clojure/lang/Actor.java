@@ -16,6 +16,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingDeque;
 
 // TODO: garbage collection of actors
@@ -36,7 +37,7 @@ public class Actor implements Runnable {
     private static final AbortEx abortex = new AbortEx();
 
     static void abortIfDependencyAborted() throws AbortEx, InterruptedException {
-        Actor current = CURRENT_ACTOR.get();
+        Actor current = ExecutionContext.current().actor;
         if (current == null)
             return;
         if (!current.tentative())
@@ -91,10 +92,18 @@ public class Actor implements Runnable {
         }
     }
 
-    // Note: this is duplicated by the dynamic var *actor*, but it's a good idea to keep both:
-    // *actor* should be kept as it's part of the public API;
-    // while this one is faster to access internally (it does not involve a look-up in the thread frame).
-    private static final ThreadLocal<Actor> CURRENT_ACTOR = new ThreadLocal<Actor>();
+    // Executor that runs the loops of actors: each occupies a thread for as
+    // long as it lives. By default Agent.soloExecutor; see VirtualThreads.
+    private static volatile ExecutorService executor = Agent.soloExecutor;
+
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // Set the executor for actors started from now on (null for the default).
+    public static void setExecutor(ExecutorService executor) {
+        Actor.executor = executor != null ? executor : Agent.soloExecutor;
+    }
 
     private Behavior behavior;
     private final Inbox inbox = new Inbox();
@@ -107,12 +116,19 @@ public class Actor implements Runnable {
         behavior = new Behavior(behaviorBody, behaviorArgs);
     }
 
+    // Note: the current actor is duplicated by the dynamic var *actor*, but it's a good idea to keep both:
+    // *actor* should be kept as it's part of the public API;
+    // while ExecutionContext.actor is faster to access internally (it does not involve a look-up in the thread frame).
     static Actor getCurrent() {
-        return CURRENT_ACTOR.get();
+        return ExecutionContext.current().actor;
     }
 
     static Actor getEx(){
-        Actor a = CURRENT_ACTOR.get();
+        return getEx(ExecutionContext.current());
+    }
+
+    private static Actor getEx(ExecutionContext ec){
+        Actor a = ec.actor;
         if(a == null)
             throw new IllegalStateException("No actor running");
         return a;
@@ -131,25 +147,29 @@ public class Actor implements Runnable {
     public static void start(Actor actor) {
         // TODO: what if transaction committed successfully (so dependency committed): now we still add to spawned (2nd
         // case), but we could immediately execute (how does this affect the order?).
-        if (AFuture.inTransaction())
+        ExecutionContext ec = ExecutionContext.current();
+        TransactionalContext ctx = ec.transaction();
+        if (ctx != null)
             // tx running: keep in tx
-            AFuture.getContextEx().spawnActor(actor);
-        else if (CURRENT_ACTOR.get() != null && CURRENT_ACTOR.get().tentative())
+            ctx.spawnActor(actor);
+        else if (ec.actor != null && ec.actor.tentative())
             // no tx running, but tentative turn: keep in actor
-            CURRENT_ACTOR.get().spawned.add(actor);
+            ec.actor.spawned.add(actor);
         else
             // else: do immediately
-            Agent.soloExecutor.submit(actor);
+            executor.submit(actor);
     }
 
     public static void doBecome(IFn behaviorBody, ISeq behaviorArgs) {
         Behavior behavior = new Behavior(behaviorBody, behaviorArgs);
-        if (AFuture.inTransaction())
+        ExecutionContext ec = ExecutionContext.current();
+        TransactionalContext ctx = ec.transaction();
+        if (ctx != null)
             // tx running: only persist become in tx
-            AFuture.getContextEx().become(behavior);
+            ctx.become(behavior);
         else
             // else: become in actor
-            Actor.getEx().become(behavior);
+            Actor.getEx(ec).become(behavior);
     }
 
     void become(Behavior newBehavior) {
@@ -162,12 +182,15 @@ public class Actor implements Runnable {
 
     public static void doEnqueue(Actor receiver, ISeq args) throws InterruptedException {
         LockingTransaction.Info dependency = null;
-        if (AFuture.inTransaction())
+        ExecutionContext ec = ExecutionContext.current();
+        TransactionalContext ctx = ec.transaction();
+        Actor current = ec.actor;
+        if (ctx != null)
             // tx running: tx = dependency
-            dependency = AFuture.getContextEx().tx.info;
-        else if (getCurrent() != null && getCurrent().tentative())
+            dependency = ctx.tx.getInfo();
+        else if (current != null && current.tentative())
             // no tx running, but tentative turn: transitive dependency
-            dependency = getCurrent().dependency;
+            dependency = current.dependency;
         // else: no dependency
         Message message = new Message(receiver, args, dependency);
         receiver.enqueue(message);
@@ -178,7 +201,7 @@ public class Actor implements Runnable {
     }
 
     public void run() {
-        CURRENT_ACTOR.set(this);
+        ExecutionContext.current().actor = this;
 
         // Create bindings map that binds *actor* to this. Used below.
         Map<Var, Object> m = new HashMap<Var, Object>();
@@ -0,0 +1,211 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Decides what a transaction does when it conflicts with another one.
+// Set globally with LockingTransaction.setContentionManager, or per
+// transaction with the :contention-manager option of sync.
+public interface ContentionManager {
+
+    // Block wait that waits until the other transaction has finished
+    // (committed, retried or been killed), however long that takes.
+    long UNTIL_FINISHED = Long.MAX_VALUE;
+
+    // tx wants to write a ref of which other is the latest writer, and other
+    // is still running. Should tx try to kill ("barge") other? If not, tx
+    // will stop and wait for other to finish (block and bail).
+    boolean shouldBarge(LockingTransaction tx, LockingTransaction.Info other);
+
+    // Maximum time (in ms) tx waits for other to finish after it has stopped
+    // because of a conflict with other, before it retries. tx is woken up as
+    // soon as other finishes, so this is only an upper bound.
+    long blockWaitMillis(LockingTransaction tx, LockingTransaction.Info other);
+
+    // Maximum time (in ms) tx waits to acquire the write lock of a ref,
+    // before it retries.
+    long lockWaitMillis(LockingTransaction tx);
+
+    // Called before tx starts attempt number attempt (> 0) after a retry.
+    // Can wait to back off.
+    void beforeRetry(LockingTransaction tx, int attempt);
+
+    // Does this contention manager use the karma of transactions? Only then
+    // are their ref operations counted.
+    default boolean usesKarma() {
+        return false;
+    }
+
+
+    // Timestamp with aging: the older transaction (the one that started
+    // first) wins, but only once it has aged bargeWaitNanos. Younger
+    // transactions wait for older ones to finish; an older transaction that
+    // can't barge yet waits until it can. This is Clojure's original policy.
+    class Timestamp implements ContentionManager {
+        final long bargeWaitNanos;
+        final long blockWaitMillis;
+        final long lockWaitMillis;
+
+        public Timestamp() {
+            this(LockingTransaction.BARGE_WAIT_NANOS, UNTIL_FINISHED,
+                    Ref.LOCK_WAIT_MSECS);
+        }
+
+        public Timestamp(long bargeWaitNanos, long blockWaitMillis,
+                         long lockWaitMillis) {
+            this.bargeWaitNanos = bargeWaitNanos;
+            this.blockWaitMillis = blockWaitMillis;
+            this.lockWaitMillis = lockWaitMillis;
+        }
+
+        public boolean shouldBarge(LockingTransaction tx,
+                                   LockingTransaction.Info other) {
+            return System.nanoTime() - tx.startTime > bargeWaitNanos &&
+                    isOlder(tx, other);
+        }
+
+        public long blockWaitMillis(LockingTransaction tx,
+                                    LockingTransaction.Info other) {
+            if (isOlder(tx, other)) {
+                // We're older: we can barge other once we've aged enough
+                long left = bargeWaitNanos - (System.nanoTime() - tx.startTime);
+                return Math.min(blockWaitMillis,
+                        TimeUnit.NANOSECONDS.toMillis(Math.max(left, 0)) + 1);
+            }
+            return blockWaitMillis;
+        }
+
+        public long lockWaitMillis(LockingTransaction tx) {
+            return lockWaitMillis;
+        }
+
+        public void beforeRetry(LockingTransaction tx, int attempt) {
+        }
+    }
+
+    // Exponential backoff with jitter: never kill another transaction, but
+    // wait a random time before retrying, between 0 and a bound that doubles
+    // on every retry (from minBackoffNanos up to maxBackoffNanos).
+    class Backoff implements ContentionManager {
+        final long minBackoffNanos;
+        final long maxBackoffNanos;
+        final long blockWaitMillis;
+        final long lockWaitMillis;
+
+        public Backoff() {
+            this(1000, 10 * 1000000, UNTIL_FINISHED, Ref.LOCK_WAIT_MSECS);
+        }
+
+        public Backoff(long minBackoffNanos, long maxBackoffNanos,
+                       long blockWaitMillis, long lockWaitMillis) {
+            this.minBackoffNanos = minBackoffNanos;
+            this.maxBackoffNanos = maxBackoffNanos;
+            this.blockWaitMillis = blockWaitMillis;
+            this.lockWaitMillis = lockWaitMillis;
+        }
+
+        public boolean shouldBarge(LockingTransaction tx,
+                                   LockingTransaction.Info other) {
+            return false;
+        }
+
+        public long blockWaitMillis(LockingTransaction tx,
+                                    LockingTransaction.Info other) {
+            return blockWaitMillis;
+        }
+
+        public long lockWaitMillis(LockingTransaction tx) {
+            return lockWaitMillis;
+        }
+
+        public void beforeRetry(LockingTransaction tx, int attempt) {
+            backoff(minBackoffNanos, maxBackoffNanos, attempt);
+        }
+    }
+
+    // Karma (with Polka's backoff): a transaction's karma is the number of
+    // ref operations it has done, over all its attempts, so it keeps growing
+    // while it is being retried. The transaction with the higher karma wins;
+    // if they are equal, the older one does. The loser backs off
+    // exponentially (with jitter) before retrying, as in Polka. Set
+    // maxBackoffNanos to 0 for plain Karma.
+    class Karma implements ContentionManager {
+        final long minBackoffNanos;
+        final long maxBackoffNanos;
+        final long blockWaitMillis;
+        final long lockWaitMillis;
+
+        public Karma() {
+            this(1000, 1000000, UNTIL_FINISHED, Ref.LOCK_WAIT_MSECS);
+        }
+
+        public Karma(long minBackoffNanos, long maxBackoffNanos,
+                     long blockWaitMillis, long lockWaitMillis) {
+            this.minBackoffNanos = minBackoffNanos;
+            this.maxBackoffNanos = maxBackoffNanos;
+            this.blockWaitMillis = blockWaitMillis;
+            this.lockWaitMillis = lockWaitMillis;
+        }
+
+        public boolean shouldBarge(LockingTransaction tx,
+                                   LockingTransaction.Info other) {
+            int karma = tx.karma();
+            int otherKarma = other.tx == null ? 0 : other.tx.karma();
+            if (karma != otherKarma)
+                return karma > otherKarma;
+            return isOlder(tx, other);
+        }
+
+        public long blockWaitMillis(LockingTransaction tx,
+                                    LockingTransaction.Info other) {
+            return blockWaitMillis;
+        }
+
+        public long lockWaitMillis(LockingTransaction tx) {
+            return lockWaitMillis;
+        }
+
+        public void beforeRetry(LockingTransaction tx, int attempt) {
+            backoff(minBackoffNanos, maxBackoffNanos, attempt);
+        }
+
+        public boolean usesKarma() {
+            return true;
+        }
+    }
+
+
+    // Did tx start before other? With the shared clock, transactions can
+    // start at the same point: then the one running on the thread with the
+    // lowest id counts as the older one, so that of two transactions always
+    // exactly one is older. (Transactions running at the same time run on
+    // different threads.)
+    static boolean isOlder(LockingTransaction tx, LockingTransaction.Info other) {
+        if (tx.startPoint != other.startPoint)
+            return tx.startPoint < other.startPoint;
+        return other.tx != null && tx.threadId < other.tx.threadId;
+    }
+
+    // Wait a random time between 0 and min(maxNanos, minNanos * 2^attempt).
+    static void backoff(long minNanos, long maxNanos, int attempt) {
+        if (maxNanos <= 0)
+            return;
+        long bound = attempt >= 62 ? maxNanos :
+                Math.min(maxNanos, minNanos << Math.min(attempt, 62));
+        if (bound <= 0)
+            bound = maxNanos;
+        LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(bound + 1));
+    }
+
+}
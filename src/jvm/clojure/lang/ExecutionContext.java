@@ -0,0 +1,54 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+// What is running on the current thread: the future (through which we find
+// the transactional context) and the actor. It is kept in one ThreadLocal,
+// so an operation that needs several of these looks the thread up once:
+// get the carrier with current() and read its fields.
+// Only the thread itself reads or writes its carrier.
+final class ExecutionContext {
+
+    private static final ThreadLocal<ExecutionContext> CURRENT =
+            new ThreadLocal<ExecutionContext>() {
+                protected ExecutionContext initialValue() {
+                    return new ExecutionContext();
+                }
+            };
+
+    // Future running in this thread (can be null)
+    AFuture future;
+    // Actor running in this thread (can be null)
+    Actor actor;
+
+    private ExecutionContext() {
+    }
+
+    static ExecutionContext current() {
+        return CURRENT.get();
+    }
+
+    // Transactional context of the current future (can be null).
+    TransactionalContext transaction() {
+        AFuture f = future;
+        return f == null ? null : f.ctx;
+    }
+
+    // Transactional context of the current future. Throws exception if no
+    // future or transaction is running.
+    TransactionalContext transactionEx() {
+        TransactionalContext ctx = transaction();
+        if (ctx == null)
+            throw new IllegalStateException("No transaction running");
+        return ctx;
+    }
+
+}
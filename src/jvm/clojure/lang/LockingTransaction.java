@@ -13,12 +13,15 @@ package clojure.lang;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 @SuppressWarnings({"SynchronizeOnNonFinalField"})
 public class LockingTransaction {
 
     // Time constants
     public static final int RETRY_LIMIT = 10000;
+    // Number of times a nested transaction is retried on its own
+    public static final int NESTED_RETRY_LIMIT = 10;
     public static final int LOCK_WAIT_MSECS = 100;
     public static final long BARGE_WAIT_NANOS = 10 * 1000000; // 10 millis
 
@@ -32,6 +35,16 @@ public class LockingTransaction {
 
     // Retry transaction (on conflict)
     static class RetryEx extends Error {
+        // Reason for the retry, for stats (see TransactionStats)
+        final int cause;
+
+        RetryEx() {
+            this(TransactionStats.CONFLICT);
+        }
+
+        RetryEx(int cause) {
+            this.cause = cause;
+        }
     }
 
     // Transaction has stopped (due to barge)
@@ -42,12 +55,44 @@ public class LockingTransaction {
     static class AbortException extends Exception {
     }
 
+    // Transaction couldn't commit within its retry limit or timeout. Carries
+    // the stats of its attempts (null if stats are disabled and it had
+    // neither option).
+    public static class TransactionFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final TransactionStats stats;
+
+        TransactionFailedException(String msg, TransactionStats stats) {
+            super(msg);
+            this.stats = stats;
+        }
+
+        public TransactionStats getStats() {
+            return stats;
+        }
+    }
+
 
     // Last time point consumed by a transaction.
-    // Transactions will consume a point for init, for each retry, and on commit
-    // if writing. This defines a total order on transaction.
+    // Transactions get a point for each attempt and, if writing, on commit,
+    // through the clock below. Commit points define a total order on
+    // transactions.
     final static AtomicLong lastPoint = new AtomicLong();
 
+    // Clock used to get read and commit points from lastPoint.
+    static volatile TransactionClock clock = TransactionClock.GLOBAL;
+
+    public static TransactionClock getClock() {
+        return clock;
+    }
+
+    public static void setClock(TransactionClock clock) {
+        if (clock == null)
+            throw new IllegalArgumentException("Clock can't be nil");
+        LockingTransaction.clock = clock;
+    }
+
 
     // Info for a transaction
     public static class Info {
@@ -59,11 +104,48 @@ public class LockingTransaction {
         // (successfully or not). Await on this to wait until a transaction has
         // succeeded.
         final CountDownLatch latch;
+        // Transaction this is the info of (can be null)
+        final LockingTransaction tx;
+        // Futures forked in this attempt, with early validation or a limit
+        // (else null), so they can be cancelled when it stops
+        final ConcurrentLinkedQueue<AFuture> futures;
+        // Is this the attempt of an inevitable transaction? Then no one can
+        // kill it.
+        final boolean inevitable;
 
         public Info(int status, long startPoint) {
+            this(status, startPoint, null);
+        }
+
+        Info(int status, long startPoint, LockingTransaction tx) {
             this.status = new AtomicInteger(status);
             this.startPoint = startPoint;
             this.latch = new CountDownLatch(1);
+            this.tx = tx;
+            this.futures = tx != null && tx.cancelFutures ?
+                    new ConcurrentLinkedQueue<AFuture>() : null;
+            this.inevitable = tx != null && tx.inevitable;
+        }
+
+        // Kill this attempt because it can't commit anymore after a ref it
+        // depends on changed (see earlyValidation). Returns true if it was
+        // running.
+        boolean kill() {
+            if (inevitable || !status.compareAndSet(RUNNING, KILLED))
+                return false;
+            latch.countDown();
+            abortFutures();
+            return true;
+        }
+
+        // Cancel the futures of this attempt that are still running,
+        // interrupting them. A get on them throws CancellationException.
+        void abortFutures() {
+            if (futures == null)
+                return;
+            AFuture f;
+            while ((f = futures.poll()) != null)
+                f.cancel(true);
         }
 
         public boolean running() {
@@ -81,31 +163,187 @@ public class LockingTransaction {
     }
 
 
-    // Transaction info. Can be read by other transactions.
-    Info info;
+    // Contention manager used by transactions that don't specify one.
+    static volatile ContentionManager defaultContentionManager =
+            new ContentionManager.Timestamp();
+
+    public static ContentionManager getContentionManager() {
+        return defaultContentionManager;
+    }
+
+    public static void setContentionManager(ContentionManager cm) {
+        if (cm == null)
+            throw new IllegalArgumentException("Contention manager can't be nil");
+        defaultContentionManager = cm;
+    }
+
+
+    // Ensure mode used by transactions that don't specify one: if true,
+    // ensures don't take read locks but are validated at commit.
+    static volatile boolean defaultOptimisticEnsure = false;
+
+    public static boolean getOptimisticEnsure() {
+        return defaultOptimisticEnsure;
+    }
+
+    public static void setOptimisticEnsure(boolean optimistic) {
+        defaultOptimisticEnsure = optimistic;
+    }
+
+
+    // Early validation for transactions that don't specify it: if true,
+    // a committer kills the running transactions that set (without locking)
+    // or optimistically ensured an older version of the refs it writes, and
+    // their futures are cancelled, instead of letting them run until they
+    // fail at commit.
+    static volatile boolean defaultEarlyValidation = false;
+
+    public static boolean getEarlyValidation() {
+        return defaultEarlyValidation;
+    }
+
+    public static void setEarlyValidation(boolean early) {
+        defaultEarlyValidation = early;
+    }
+
+
+    // Transaction options, passed to sync
+    static final Keyword READ_ONLY = Keyword.intern(null, "read-only");
+    static final Keyword CONTENTION_MANAGER = Keyword.intern(null, "contention-manager");
+    static final Keyword OPTIMISTIC_ENSURE = Keyword.intern(null, "optimistic-ensure");
+    static final Keyword EARLY_VALIDATION = Keyword.intern(null, "early-validation");
+    static final Keyword TIMEOUT_MS = Keyword.intern(null, "timeout-ms");
+    static final Keyword RETRY_LIMIT_OPTION = Keyword.intern(null, "retry-limit");
+    static final Keyword INEVITABLE = Keyword.intern(null, "inevitable");
+
+
+    // Token held by the inevitable transaction, if any: there is at most one
+    // at a time. Fair, so inevitable transactions run in order.
+    static final Semaphore INEVITABLE_TOKEN = new Semaphore(1, true);
+
+    // Info of an attempt that hasn't shared its info with other transactions
+    // yet. No one else can stop such an attempt, so it is always running.
+    static final Info UNSHARED = new Info(RUNNING, 0);
+
+    // Transaction info. Can be read by other transactions. This is UNSHARED
+    // until an Info is needed (see getInfo), so transactions that don't write
+    // don't allocate one. null once the attempt has stopped.
+    volatile Info info;
+    private static final AtomicReferenceFieldUpdater<LockingTransaction, Info> INFO =
+            AtomicReferenceFieldUpdater.newUpdater(LockingTransaction.class, Info.class, "info");
+    // Read-only transaction: can only read refs
+    final boolean readOnly;
+    // Ensures are validated at commit instead of holding read locks
+    final boolean optimisticEnsure;
+    // Register as dependent of refs set without lock or ensured
+    // optimistically, to be killed early when they change
+    final boolean earlyValidation;
+    // Maximum number of attempts
+    final int retryLimit;
+    // Maximum duration of the transaction in ms, 0 if unlimited
+    final long timeoutMillis;
+    // Cancel the futures of an attempt when it stops without committing
+    final boolean cancelFutures;
+    // Inevitable: holds INEVITABLE_TOKEN, can't be killed, and takes over
+    // the refs it reads or writes instead of conflicting on them (see
+    // Ref.own), so it commits in its first attempt
+    final boolean inevitable;
+    // System.nanoTime() at which the transaction times out, if timeoutMillis
+    // isn't 0
+    long deadline;
+    // Contention manager of this transaction
+    final ContentionManager contentionManager;
     // Time point at which transaction was first started.
-    private long startPoint;
+    long startPoint;
+    // Id of the thread running the transaction: breaks ties between
+    // transactions with the same startPoint (see ContentionManager.isOlder)
+    final long threadId = Thread.currentThread().getId();
     // Time at which transaction first started.
-    private long startTime;
+    long startTime;
+    // Does the contention manager use karma? Else ref operations aren't
+    // counted.
+    final boolean countKarma;
+    // Number of ref operations in earlier attempts, used by the Karma
+    // contention manager. The current attempt counts them per context (see
+    // TransactionalContext.karma), and adds them when it stops.
+    volatile int karma;
     // Time point at which current attempt of transaction started.
     long readPoint;
+    // Stats of this transaction, null if stats are disabled
+    TransactionStats stats;
     // Transactional context in root future
-    private TransactionalContext root;
+    // (volatile: other transactions read its karma)
+    private volatile TransactionalContext root;
+
 
+    LockingTransaction() {
+        this(null);
+    }
+
+    // Create transaction with the given options (see runInTransaction).
+    LockingTransaction(IPersistentMap options) {
+        if (options == null)
+            options = PersistentArrayMap.EMPTY;
+        this.readOnly = RT.booleanCast(options.valAt(READ_ONLY));
+        this.optimisticEnsure = RT.booleanCast(options.valAt(OPTIMISTIC_ENSURE,
+                defaultOptimisticEnsure));
+        this.earlyValidation = !readOnly && RT.booleanCast(
+                options.valAt(EARLY_VALIDATION, defaultEarlyValidation));
+        Object limit = options.valAt(RETRY_LIMIT_OPTION);
+        this.retryLimit = limit == null ? RETRY_LIMIT : RT.intCast(limit);
+        if (retryLimit < 1)
+            throw new IllegalArgumentException("Retry limit must be at least 1");
+        Object timeout = options.valAt(TIMEOUT_MS);
+        this.timeoutMillis = timeout == null ? 0 : RT.longCast(timeout);
+        if (timeoutMillis < 0)
+            throw new IllegalArgumentException("Timeout can't be negative");
+        this.cancelFutures = earlyValidation || limit != null || timeout != null;
+        this.inevitable = !readOnly && RT.booleanCast(options.valAt(INEVITABLE));
+        ContentionManager cm = (ContentionManager) options.valAt(CONTENTION_MANAGER);
+        this.contentionManager = cm != null ? cm : defaultContentionManager;
+        this.countKarma = contentionManager.usesKarma();
+    }
+
+    // Number of ref operations over all attempts. Read by other
+    // transactions: it only includes the operations of the current attempt
+    // that were merged into its root context, and might be slightly stale.
+    int karma() {
+        TransactionalContext r = root;
+        return r == null ? karma : karma + r.karma;
+    }
+
+    // Get the info of the current attempt, to share it with other
+    // transactions (e.g. as the latest writer of a ref). Creates it if
+    // necessary.
+    Info getInfo() {
+        while (true) {
+            Info i = info;
+            if (i == null)
+                throw new StoppedEx();
+            if (i != UNSHARED)
+                return i;
+            Info created = new Info(RUNNING, startPoint, this);
+            if (INFO.compareAndSet(this, UNSHARED, created))
+                return created;
+        }
+    }
 
     // Indicate transaction as having stopped (with certain state).
     // OK to call twice (idempotent).
     void stop(int status) {
-        if (info != null) {
-            synchronized (info) {
-                info.status.set(status);
-                // Notify other transactions that are waiting for this one to
-                // finish (using blockAndBail).
-                info.latch.countDown();
-            }
-            info = null;
-            // From now on, isNotKilled returns false and all operations on refs
-            // (in AFuture) will throw StoppedEx
+        Info info = INFO.getAndSet(this, null);
+        // From now on, isNotKilled returns false and all operations on refs
+        // (in AFuture) will throw StoppedEx
+        if (info != null && info != UNSHARED) {
+            // No lock needed (and none taken, so a virtual thread isn't
+            // pinned): status is set before the latch opens, so whoever
+            // wakes up from it sees the final status.
+            info.status.set(status);
+            // Notify other transactions that are waiting for this one to
+            // finish (using blockAndBail).
+            info.latch.countDown();
+            if (status != COMMITTED)
+                info.abortFutures();
         }
         root.stop(status);
     }
@@ -119,8 +357,11 @@ public class LockingTransaction {
     // provided for compatibility with existing Clojure, which uses it in the
     // definition of io!. Don't use it because its name is confusing; use
     // AFuture.inTransaction() instead.
+    // Returns false in an inevitable transaction, which is never retried, so
+    // io! is allowed in it.
     public static boolean isRunning() {
-        return AFuture.inTransaction();
+        TransactionalContext ctx = AFuture.getContext();
+        return ctx != null && !ctx.tx.inevitable;
     }
 
     // Get the transaction we're in. Note that the transaction may
@@ -135,36 +376,86 @@ public class LockingTransaction {
         return ctx.tx;
     }
 
-    // Try to "barge" the other transaction: if this transaction is older, and
-    // we've been waiting for at least BARGE_WAIT_NANOS (10 ms), kill the other
-    // one.
+    // Try to "barge" the other transaction: kill it, if the contention
+    // manager decides we should.
+    // An inevitable transaction always barges, and is never barged.
     boolean barge(LockingTransaction.Info other) {
         boolean barged = false;
-        // if this transaction is older, try to abort the other
-        if (other != null && bargeTimeElapsed() &&
-                startPoint < other.startPoint) {
+        if (other != null && !other.inevitable &&
+                (inevitable || contentionManager.shouldBarge(this, other))) {
             barged = other.status.compareAndSet(RUNNING, KILLED);
-            if (barged)
+            if (barged) {
                 other.latch.countDown();
+                if (stats != null)
+                    stats.barges++; // approximate, can be called in futures
+            }
         }
         return barged;
     }
 
-    // Has enough time elapsed to try to barge?
-    private boolean bargeTimeElapsed() {
-        return System.nanoTime() - startTime > BARGE_WAIT_NANOS;
-    }
-
     // Block and bail: stop this transaction, wait until other one has finished,
-    // then retry.
+    // then retry. Other counts down its latch when it commits, retries or is
+    // killed, so we wake up as soon as that happens; the contention manager
+    // only decides the maximum wait.
     Object blockAndBail(LockingTransaction.Info other) {
         stop(RETRY);
+        awaitFinished(other);
+        throw new RetryEx(TransactionStats.BLOCK_AND_BAIL);
+    }
+
+    // Wait until other has finished, at most as long as the contention
+    // manager says. Call this after stopping, so as not to hold up others.
+    void awaitFinished(LockingTransaction.Info other) {
         try {
-            other.latch.await(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS);
+            other.latch.await(withinDeadline(
+                    contentionManager.blockWaitMillis(this, other)),
+                    TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             // ignore, retry immediately
         }
-        throw new RetryEx();
+    }
+
+    // Record that the current attempt is retried because of cause (for stats).
+    void retried(int cause) {
+        if (stats != null)
+            stats.attemptRetried(cause);
+    }
+
+    // Cause of a StoppedEx in the current attempt: were we killed by another
+    // transaction, or stopped by one of our futures?
+    private int stoppedCause() {
+        Info i = info;
+        if (i != null && i.status.get() == KILLED)
+            return TransactionStats.BARGED;
+        return TransactionStats.STOPPED;
+    }
+
+    // Time to wait for a write lock.
+    long lockWaitMillis() {
+        return withinDeadline(contentionManager.lockWaitMillis(this));
+    }
+
+    // Wait of millis, cut off at the deadline.
+    private long withinDeadline(long millis) {
+        if (timeoutMillis == 0)
+            return millis;
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        return Math.max(0, Math.min(millis, left));
+    }
+
+    // Take INEVITABLE_TOKEN, waiting at most until the deadline. Returns false
+    // if it timed out.
+    private boolean acquireInevitable() throws InterruptedException {
+        if (timeoutMillis == 0) {
+            INEVITABLE_TOKEN.acquire();
+            return true;
+        }
+        return INEVITABLE_TOKEN.tryAcquire(deadline - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    boolean timedOut() {
+        return timeoutMillis != 0 && System.nanoTime() - deadline >= 0;
     }
 
     // Kill this transaction.
@@ -178,83 +469,203 @@ public class LockingTransaction {
     // If we're already in a transaction, use that one, else creates one.
     // TODO: move this?
     static public Object runInTransaction(Callable fn) throws Exception {
-        TransactionalContext ctx = AFuture.getContext();
+        return runInTransaction(null, fn);
+    }
+
+    // Run fn in a transaction, with the given options (can be null):
+    // :read-only           if true, the transaction can only read refs. It
+    //                      never shares its info, takes locks, or consumes a
+    //                      commit point.
+    // :contention-manager  ContentionManager to use instead of the default.
+    // :optimistic-ensure   if true, ensure doesn't read-lock the ref until
+    //                      commit, but commit checks that it hasn't changed.
+    //                      Defaults to getOptimisticEnsure().
+    // :early-validation    if true, the transaction is killed as soon as
+    //                      another one commits a ref it can't commit anymore
+    //                      (a deferred set or an optimistic ensure), and its
+    //                      futures are cancelled. Defaults to
+    //                      getEarlyValidation().
+    // :retry-limit         maximum number of attempts, instead of RETRY_LIMIT.
+    // :timeout-ms          maximum time to try to commit, in ms. Checked
+    //                      between attempts, and cuts off waits for locks
+    //                      and other transactions.
+    // If the transaction doesn't commit within these, it throws a
+    // TransactionFailedException, and its futures are cancelled.
+    // :inevitable          if true, the transaction waits until no other
+    //                      inevitable transaction runs, and then runs once:
+    //                      it can't be barged, takes over the refs it uses,
+    //                      commute behaves like alter, and io! is allowed.
+    // Options are ignored if we're already in a transaction: then fn runs as
+    // a nested transaction (see runNested).
+    static public Object runInTransaction(IPersistentMap options, Callable<?> fn)
+            throws Exception {
+        AFuture f = AFuture.getCurrent();
+        TransactionalContext ctx = f == null ? null : f.ctx;
         if (ctx == null) { // No transaction running: create one
-            LockingTransaction t = new LockingTransaction();
+            LockingTransaction t = new LockingTransaction(options);
             return t.run(fn);
-        } else { // Transaction exists
-            if (ctx.tx.info != null) { // Transaction in transaction: simply call fn
-                return fn.call();
-            } else { // XXX I'm not sure when this happens?
-                // XXX This might actually be incorrect: what if a transaction
-                // is stopped (through barging) right before an inner dosync
-                // gets called?
-                return ctx.tx.run(fn);
-            }
+        } else { // Transaction in transaction
+            if (!ctx.tx.isNotKilled())
+                throw new StoppedEx();
+            return runNested(f, ctx, fn);
         }
     }
 
-    // Run fn in transaction.
-    Object run(Callable fn) throws Exception {
-        boolean committed = false;
-        Object result = null;
-        for (int i = 0; !committed && i < RETRY_LIMIT; i++) {
-            readPoint = lastPoint.incrementAndGet();
-            if (i == 0) {
-                startPoint = readPoint;
-                startTime = System.nanoTime();
-            }
-            info = new Info(RUNNING, startPoint);
-
-            AFuture rootFuture = AFuture.getCurrent();
-            boolean emptyRootFuture = (rootFuture == null);
+    // Run fn as a transaction nested in the transaction of ctx, the context
+    // of future f (closed nesting). It gets its own context, which is merged
+    // into ctx when it finishes. If it conflicts, only the nested transaction
+    // is undone and retried, after moving the read point forward; if that's
+    // not possible, or if it keeps on conflicting, the conflict goes to the
+    // enclosing transaction as usual. If fn throws, its effects are undone.
+    static Object runNested(AFuture f, TransactionalContext ctx, Callable<?> fn)
+            throws Exception {
+        LockingTransaction tx = ctx.tx;
+        for (int i = 1; ; i++) {
+            TransactionalContext inner = new TransactionalContext(ctx, true);
+            f.ctx = inner;
             boolean finished = false;
+            RetryEx retry;
             try {
-                if (emptyRootFuture)
-                    rootFuture = AFuture.createRootFuture();
-                rootFuture.enterTransaction(this);
-                root = AFuture.getContext();
-                result = fn.call();
-                // Wait for all futures forked during the transaction to finish
-                // This is safe to do in this thread, as the current future's
-                // body has finished, so all children have been spawned.
-                root.mergeChildren();
-                Actor.abortIfDependencyAborted();
+                Object result = fn.call();
+                inner.mergeChildren();
+                ctx.mergeNested(inner);
                 finished = true;
-            } catch (StoppedEx ex) {
-                // eat this, finished will stay false, and we'll retry
+                return result;
             } catch (RetryEx ex) {
-                // eat this, finished will stay false, and we'll retry
+                retry = ex;
             } catch (ExecutionException ex) {
-                // exception in embedded future
-                // If the cause or any deeper cause is StoppedEx or RetryEx:
-                // ignore, like above. Otherwise, re-throw ExecutionException
-                // (it is up to the user to deal with it).
+                // Like in run
                 Throwable cause = ex.getCause();
                 while (cause instanceof ExecutionException) {
                     cause = cause.getCause();
                 }
-                if (cause instanceof StoppedEx) {
-                    // eat this
-                } else if (cause instanceof RetryEx) {
-                    // eat this
-                } else {
-                    throw ex; // throw original ExecutionException, not cause
-                }
+                if (!(cause instanceof RetryEx))
+                    throw ex;
+                retry = (RetryEx) cause;
             } finally {
-                rootFuture.exitTransaction();
-                if (!finished) {
-                    stop(RETRY);
-                } else {
-                    committed = root.commit(this);
+                if (!finished)
+                    inner.abandonNested();
+                f.ctx = ctx;
+            }
+            if (i >= NESTED_RETRY_LIMIT || !tx.isNotKilled() ||
+                    !ctx.extendReadPoint())
+                throw retry;
+            if (tx.stats != null)
+                tx.stats.nestedRetries++;
+        }
+    }
+
+    // Run fn in transaction.
+    Object run(Callable fn) throws Exception {
+        boolean committed = false;
+        Object result = null;
+        AFuture rootFuture = AFuture.getCurrent();
+        boolean emptyRootFuture = (rootFuture == null);
+        if (emptyRootFuture)
+            rootFuture = AFuture.createRootFuture();
+        boolean enabled = TransactionStats.enabled;
+        stats = enabled || cancelFutures ? new TransactionStats() : null;
+        if (timeoutMillis != 0)
+            deadline = System.nanoTime() +
+                    TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean timedOut = false;
+        boolean holdsToken = false;
+        // Until the loop ends without an exception
+        int outcome = TransactionStats.THREW;
+        try {
+            if (inevitable) {
+                holdsToken = acquireInevitable();
+                timedOut = !holdsToken;
+            }
+            for (int i = 0; !timedOut && !committed && i < retryLimit; i++) {
+                if (i > 0) {
+                    contentionManager.beforeRetry(this, i);
+                    if (timedOut()) {
+                        timedOut = true;
+                        break;
+                    }
+                }
+                readPoint = clock.readPoint();
+                if (i == 0) {
+                    startPoint = readPoint;
+                    startTime = System.nanoTime();
+                }
+                info = UNSHARED;
+                if (stats != null)
+                    stats.attemptStarted(this);
+
+                boolean finished = false;
+                try {
+                    rootFuture.enterTransaction(this);
+                    root = rootFuture.ctx;
+                    result = fn.call();
+                    // Wait for all futures forked during the transaction to finish
+                    // This is safe to do in this thread, as the current future's
+                    // body has finished, so all children have been spawned.
+                    root.mergeChildren();
+                    Actor.abortIfDependencyAborted();
+                    finished = true;
+                } catch (StoppedEx ex) {
+                    // eat this, finished will stay false, and we'll retry
+                    retried(stoppedCause());
+                } catch (RetryEx ex) {
+                    // eat this, finished will stay false, and we'll retry
+                    retried(ex.cause);
+                } catch (CancellationException ex) {
+                    // A future of this attempt was cancelled because it was
+                    // killed (see earlyValidation): retry. Else re-throw.
+                    if (isNotKilled())
+                        throw ex;
+                    retried(stoppedCause());
+                } catch (ExecutionException ex) {
+                    // exception in embedded future
+                    // If the cause or any deeper cause is StoppedEx or RetryEx:
+                    // ignore, like above. Otherwise, re-throw ExecutionException
+                    // (it is up to the user to deal with it).
+                    Throwable cause = ex.getCause();
+                    while (cause instanceof ExecutionException) {
+                        cause = cause.getCause();
+                    }
+                    if (cause instanceof StoppedEx ||
+                            (cause instanceof CancellationException && !isNotKilled())) {
+                        // eat this
+                        retried(stoppedCause());
+                    } else if (cause instanceof RetryEx) {
+                        // eat this
+                        retried(((RetryEx) cause).cause);
+                    } else {
+                        throw ex; // throw original ExecutionException, not cause
+                    }
+                } finally {
+                    rootFuture.exitTransaction();
+                    if (!finished) {
+                        stop(RETRY);
+                    } else {
+                        committed = root.commit(this);
+                    }
+                    if (root != null && root.karma != 0)
+                        karma += root.karma;
+                    root = null;
                 }
-                root = null;
-                if (emptyRootFuture)
-                    AFuture.destructRootFuture();
             }
+            outcome = committed ? TransactionStats.COMMITTED
+                    : timedOut ? TransactionStats.TIMED_OUT
+                    : TransactionStats.RETRY_LIMIT;
+        } finally {
+            if (holdsToken)
+                INEVITABLE_TOKEN.release();
+            if (emptyRootFuture)
+                AFuture.destructRootFuture();
+            if (stats != null && enabled)
+                stats.finished(outcome);
+        }
+        if (!committed) {
+            if (timedOut)
+                throw new TransactionFailedException("Transaction timed out after "
+                        + timeoutMillis + " ms", stats);
+            throw new TransactionFailedException(
+                    "Transaction failed after reaching retry limit", stats);
         }
-        if (!committed)
-            throw Util.runtimeException("Transaction failed after reaching retry limit");
         return result;
     }
 
@@ -0,0 +1,100 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Post-commit pipeline: when async (off by default), committers don't notify
+// watches or dispatch agent sends themselves, but hand them to a dedicated
+// thread, one batch per commit. Commits submit their batch while they still
+// hold the write locks of their refs, and the thread runs batches in order,
+// so the notifications of a ref keep the order of its commits.
+// Exceptions thrown by watches go to the default uncaught exception handler.
+public class PostCommit {
+
+    static volatile boolean async = false;
+
+    private static volatile ExecutorService executor = null;
+
+    public static boolean isAsync() {
+        return async;
+    }
+
+    public static synchronized void setAsync(boolean async) {
+        if (async && executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "chocola-post-commit");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        PostCommit.async = async;
+    }
+
+    // Wait until all batches submitted before have run.
+    public static void await() throws InterruptedException {
+        ExecutorService e = executor;
+        if (e == null)
+            return;
+        try {
+            e.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            // can't happen
+        }
+    }
+
+    // Submit the batch of a commit: the (ref, oldval, newval) triples in
+    // notify[0..n[ and the agent actions. Copies them, so the caller can
+    // reuse its arrays and list.
+    static void submit(Object[] notify, int n, List<Agent.Action> actions) {
+        boolean noActions = actions == null || actions.isEmpty();
+        if (n == 0 && noActions)
+            return;
+        final Object[] watched = n == 0 ? null : Arrays.copyOf(notify, n);
+        final List<Agent.Action> sends = noActions ? null :
+                new ArrayList<Agent.Action>(actions);
+        executor.execute(new Runnable() {
+            public void run() {
+                if (sends != null) {
+                    for (Agent.Action action : sends)
+                        Agent.dispatchAction(action);
+                }
+                if (watched != null) {
+                    for (int i = 0; i < watched.length; i += 3) {
+                        try {
+                            ((Ref) watched[i]).notifyWatches(watched[i + 1],
+                                    watched[i + 2]);
+                        } catch (Throwable t) {
+                            Thread.UncaughtExceptionHandler h =
+                                    Thread.getDefaultUncaughtExceptionHandler();
+                            if (h != null)
+                                h.uncaughtException(Thread.currentThread(), t);
+                            else
+                                t.printStackTrace();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+}
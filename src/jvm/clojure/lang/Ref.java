@@ -12,9 +12,12 @@
 
 package clojure.lang;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
@@ -39,40 +42,52 @@ public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
     }
 
     // Ref value and time point at which they were committed
+    // A version is never modified once it has been published, so it can be
+    // read without holding a lock. Old versions are dropped by cutting them
+    // off from the end of the list (setting prior to null).
     public static class TVal {
-        Object val;
-        long point;
-        // tvals form a circular list
+        final Object val;
+        final long point;
+        // Older version, or null if it isn't kept anymore
         TVal prior;
-        TVal next;
 
         TVal(Object val, long point, TVal prior) {
             this.val = val;
             this.point = point;
             this.prior = prior;
-            this.next = prior.next;
-            this.prior.next = this;
-            this.next.prior = this;
         }
 
         TVal(Object val, long point) {
-            this.val = val;
-            this.point = point;
-            this.next = this;
-            this.prior = this;
+            this(val, point, null);
         }
 
     }
 
 
-    // Circular list of values and time point at which they were committed
-    TVal tvals;
+    // Latest version, older versions are linked through prior (unless this
+    // ref uses an adaptive history). Published by committers while holding
+    // the write lock; read without any lock.
+    volatile TVal tvals;
+    // Number of older versions linked through prior
+    int histCount;
+    // Old versions in adaptive history mode, else null
+    volatile RefHistory history;
+    // Combines commutes of concurrent committers, or null (see RefCombiner)
+    volatile RefCombiner combiner;
     // Number of faults: gets were no recent-enough version could be found
     final AtomicInteger faults;
     // Lock
     final ReentrantReadWriteLock lock;
     // Latest transaction that has written to this ref
-    LockingTransaction.Info latestWriter;
+    // Written while holding the write lock. Volatile so that it can be read
+    // as a hint without the lock (see lockWrite).
+    volatile LockingTransaction.Info latestWriter;
+    // Running attempts with early validation that can't commit anymore once
+    // this ref changes, or null (see addDependent)
+    volatile ConcurrentLinkedQueue<LockingTransaction.Info> dependents;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Ref, ConcurrentLinkedQueue> DEPENDENTS =
+            AtomicReferenceFieldUpdater.newUpdater(Ref.class, ConcurrentLinkedQueue.class, "dependents");
     // Unique id
     final long id;
 
@@ -129,10 +144,74 @@ public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
     public void trimHistory() {
         try {
             lock.writeLock().lock();
-            if (tvals != null) {
-                tvals.next = tvals;
-                tvals.prior = tvals;
+            if (tvals != null)
+                tvals.prior = null;
+            histCount = 0;
+            if (history != null)
+                history.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isCombining() {
+        return combiner != null;
+    }
+
+    // Combine commutes of transactions that only commute this ref (see
+    // RefCombiner).
+    public Ref setCombining(boolean combining) {
+        if (!combining)
+            combiner = null;
+        else if (combiner == null)
+            combiner = new RefCombiner(this);
+        return this;
+    }
+
+    public boolean isAdaptiveHistory() {
+        return history != null;
+    }
+
+    // Switch between an adaptive history (see RefHistory) and the default
+    // one, which only grows on faults, one version at a time.
+    public Ref setAdaptiveHistory(boolean adaptive) {
+        try {
+            lock.writeLock().lock();
+            if (adaptive == (history != null))
+                return this;
+            if (adaptive) {
+                RefHistory h = new RefHistory(Math.max(histCount, minHistory));
+                if (tvals != null) {
+                    // Move the old versions into h, oldest first
+                    TVal[] old = new TVal[histCount];
+                    int n = 0;
+                    for (TVal tv = tvals.prior; tv != null && n < old.length;
+                         tv = tv.prior)
+                        old[n++] = tv;
+                    while (n > 0)
+                        h.add(old[--n]);
+                }
+                // Publish the history before the latest version without
+                // prior, readers read them in the other order.
+                history = h;
+                if (tvals != null)
+                    tvals = new TVal(tvals.val, tvals.point);
+            } else {
+                TVal prior = null;
+                RefHistory h = history;
+                long s = h.state;
+                int head = (int) (s >>> 32);
+                int count = (int) s;
+                for (int k = count - 1; k >= 0; k--) {
+                    int i = (head - k) & h.mask;
+                    prior = new TVal(h.vals.get(i), h.points.get(i), prior);
+                }
+                if (tvals != null)
+                    tvals = new TVal(tvals.val, tvals.point, prior);
+                histCount = tvals == null ? 0 : count;
+                history = null;
             }
+            return this;
         } finally {
             lock.writeLock().unlock();
         }
@@ -148,13 +227,89 @@ public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
     }
 
     int histCount() {
-        if (tvals == null)
-            return 0;
-        else {
-            int count = 0;
-            for (TVal tv = tvals.next; tv != tvals; tv = tv.next)
-                count++;
-            return count;
+        RefHistory h = history;
+        if (h != null)
+            return h.count();
+        return histCount;
+    }
+
+    // Publish a new version, committed at commitPoint. The history grows if
+    // there were faults (up to maxHistory) or if it is smaller than
+    // minHistory, else the oldest version is dropped. An adaptive history
+    // decides itself how to grow or shrink (see RefHistory).
+    // Must be called while holding the write lock.
+    void commitVal(Object newval, long commitPoint) {
+        if (dependents != null)
+            killDependents(commitPoint);
+        if (tvals == null) {
+            tvals = new TVal(newval, commitPoint);
+            return;
+        }
+        RefHistory h = history;
+        if (h != null) {
+            // Publish the history before the new latest version, readers
+            // read them in the other order.
+            history = h.push(tvals, faults.getAndSet(0), minHistory, maxHistory);
+            tvals = new TVal(newval, commitPoint);
+            return;
+        }
+        int hcount = histCount;
+        if ((faults.get() > 0 && hcount < maxHistory) || hcount < minHistory) {
+            tvals = new TVal(newval, commitPoint, tvals);
+            histCount = hcount + 1;
+            faults.set(0);
+        } else {
+            TVal ver = new TVal(newval, commitPoint, tvals);
+            // Keep hcount older versions: cut off the rest. Readers that are
+            // still walking the old versions will see either the version or
+            // null (which is a fault).
+            TVal last = ver;
+            for (int i = 0; i < hcount && last.prior != null; i++)
+                last = last.prior;
+            last.prior = null;
+            tvals = ver;
+        }
+    }
+
+
+    // Early validation
+
+    // Register the attempt of info as depending on this ref: it set it
+    // without locking it (a deferred set) or ensured it optimistically, so it
+    // can only commit if no one else commits this ref after its read point.
+    // Plain readers don't register: under snapshot isolation they can still
+    // commit, and they read the ref before it can fall out of the history.
+    // Drops the attempts that stopped, so the queue only holds running ones.
+    void addDependent(LockingTransaction.Info info) {
+        ConcurrentLinkedQueue<LockingTransaction.Info> ds = dependents;
+        if (ds == null) {
+            DEPENDENTS.compareAndSet(this, null,
+                    new ConcurrentLinkedQueue<LockingTransaction.Info>());
+            ds = dependents;
+        }
+        Iterator<LockingTransaction.Info> it = ds.iterator();
+        while (it.hasNext()) {
+            if (!it.next().running())
+                it.remove();
+        }
+        ds.add(info);
+    }
+
+    // Kill the dependents with a read point before commitPoint: they would
+    // fail at commit anyway. Called by the committer, while holding the write
+    // lock. Attempts that registered too late to be killed here find out at
+    // commit, as usual.
+    private void killDependents(long commitPoint) {
+        Iterator<LockingTransaction.Info> it = dependents.iterator();
+        while (it.hasNext()) {
+            LockingTransaction.Info info = it.next();
+            if (!info.running()) {
+                it.remove();
+            } else if (info.tx != null && info.tx.readPoint < commitPoint) {
+                it.remove();
+                if (info.kill())
+                    conflict(RefProfiler.EARLY_KILL);
+            }
         }
     }
 
@@ -173,31 +328,67 @@ public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
         lock.writeLock().unlock();
     }
 
-    void tryWriteLock() {
+    // Try to acquire the write lock, waiting at most waitMillis. Throws
+    // RetryEx if that didn't work.
+    void tryWriteLock(long waitMillis) {
+        tryWriteLock(waitMillis, TransactionStats.LOCK_TIMEOUT);
+    }
+
+    // Idem, with the cause to report in the RetryEx.
+    void tryWriteLock(long waitMillis, int cause) {
         try {
-            if (!lock.writeLock().tryLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS))
-                throw new LockingTransaction.RetryEx();
+            if (!lock.writeLock().tryLock(waitMillis, TimeUnit.MILLISECONDS)) {
+                conflict(RefProfiler.LOCK_TIMEOUT);
+                throw new LockingTransaction.RetryEx(cause);
+            }
         } catch (InterruptedException e) {
-            throw new LockingTransaction.RetryEx();
+            throw new LockingTransaction.RetryEx(cause);
         }
     }
 
+    // Record a conflict on this ref in the conflict profiler, if it's on.
+    void conflict(int kind) {
+        if (RefProfiler.sampleRate > 0)
+            RefProfiler.record(this, kind);
+    }
+
+    // Try to barge the running latest writer of this ref, for tx. Returns
+    // false if tx should wait for it instead.
+    boolean barge(LockingTransaction tx, LockingTransaction.Info latest) {
+        boolean barged = tx.barge(latest);
+        conflict(barged ? RefProfiler.BARGE_WON : RefProfiler.BARGE_LOST);
+        return barged;
+    }
+
     // Lock the ref for writing, for the given transaction.
     // Returns the most recent val.
     Object lockWrite(LockingTransaction tx) {
+        LockingTransaction.Info info = tx.getInfo();
         boolean locked = false;
         try {
-            tryWriteLock();
+            if (!lock.writeLock().tryLock()) {
+                // Contended. If another transaction is writing this ref, we
+                // will conflict with it once we get the lock, so rather than
+                // waiting for the lock, try to barge it or wait until it is
+                // done.
+                LockingTransaction.Info latest = latestWriter;
+                if (latest != null && latest != info && latest.running() &&
+                        !barge(tx, latest))
+                    return tx.blockAndBail(latest);
+                tryWriteLock(tx.lockWaitMillis());
+            }
             locked = true;
 
-            if (tvals != null && tvals.point > tx.readPoint)
+            if (tvals != null && tvals.point > tx.readPoint) {
+                conflict(RefProfiler.READ_RETRY);
                 throw new LockingTransaction.RetryEx();
+            }
 
             LockingTransaction.Info latest = latestWriter;
 
             // Write lock conflict: someone already locked this
-            if (latest != null && latest != tx.info && latest.running()) {
-                boolean barged = tx.barge(latest);
+            if (latest != null && latest != info && latest.running()) {
+                boolean barged = barge(tx, latest);
                 // Try to barge other, if it didn't work, unlock and "block and
                 // bail" (i.e. stop this transaction, wait until other one has
                 // finished, then retry).
@@ -207,7 +398,7 @@ public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
                     return tx.blockAndBail(latest);
                 }
             }
-            latestWriter = tx.info;
+            latestWriter = info;
             // Note: even if we do tx.info = null at a later point, this keeps
             // a pointer to the original info
             return tvals == null ? null : tvals.val;
@@ -218,23 +409,101 @@ public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
     }
 
 
-    // The latest value.
-    // OK to call outside transaction.
-    Object currentVal() {
+    // Make the inevitable transaction tx the latest writer of this ref, so no
+    // one else can commit it until tx finishes, and return its latest
+    // version. Barges the current writer, or waits for it if it is already
+    // committing, instead of retrying.
+    TVal own(LockingTransaction tx) {
+        LockingTransaction.Info info = tx.getInfo();
+        while (true) {
+            LockingTransaction.Info latest;
+            lock.writeLock().lock();
+            try {
+                latest = latestWriter;
+                if (latest == null || latest == info || !latest.running() ||
+                        barge(tx, latest)) {
+                    latestWriter = info;
+                    return tvals;
+                }
+            } finally {
+                unlockWrite();
+            }
+            try {
+                latest.latch.await();
+            } catch (InterruptedException e) {
+                // ignore, check again
+            }
+        }
+    }
+
+
+    // Versioned reads: committers publish new versions while holding the
+    // write lock, so readers don't need to take the read lock, except if a
+    // writer is busy with this ref. In that case, the writer might be
+    // committing several refs at the same time point, and we wait until it's
+    // done to make sure we never see only some of them.
+    // (A writer that locks the ref after we checked will commit at a point
+    // after our read point, so we can safely ignore its version.)
+
+    // The latest version, or null if the ref is unbound.
+    TVal latest() {
+        if (lock.isWriteLocked()) {
+            try {
+                lock.readLock().lock();
+                return tvals;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return tvals;
+    }
+
+    // The most recent version committed at or before point, or null if that
+    // version isn't kept anymore.
+    TVal versionAt(long point) {
+        if (!lock.isWriteLocked()) {
+            TVal ver = findVersion(point);
+            if (ver != RefHistory.INCONSISTENT)
+                return ver;
+            // A writer modified the adaptive history while we were reading
+            // it: read it again while holding the lock.
+        }
         try {
             lock.readLock().lock();
-            if (tvals != null)
-                return tvals.val;
-            throw new IllegalStateException(this.toString() + " is unbound.");
+            return findVersion(point);
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    private TVal findVersion(long point) {
+        TVal ver = tvals;
+        if (ver == null)
+            throw new IllegalStateException(this.toString() + " is unbound.");
+        if (ver.point <= point)
+            return ver;
+        RefHistory h = history;
+        if (h != null)
+            return h.find(point, ver.point);
+        while (ver != null && ver.point > point)
+            ver = ver.prior;
+        return ver;
+    }
+
+    // The latest value.
+    // OK to call outside transaction.
+    Object currentVal() {
+        TVal ver = latest();
+        if (ver != null)
+            return ver.val;
+        throw new IllegalStateException(this.toString() + " is unbound.");
+    }
+
     public Object deref() {
-        if (!AFuture.inTransaction())
+        TransactionalContext ctx = AFuture.getContext();
+        if (ctx == null)
             return currentVal();
-        return AFuture.getContextEx().doGet(this);
+        return ctx.doGet(this);
     }
 
     public Object set(Object val) {
@@ -256,12 +525,7 @@ public class Ref extends ARef implements IFn, Comparable<Ref>, IRef {
 
     // Does the ref have a value?
     boolean isBound() {
-        try {
-            lock.readLock().lock();
-            return tvals != null;
-        } finally {
-            lock.readLock().unlock();
-        }
+        return tvals != null;
     }
 
 
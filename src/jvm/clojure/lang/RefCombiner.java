@@ -0,0 +1,162 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Flat combining of commutes on a ref (the :combine option of ref).
+// A transaction whose only write is a commute on such a ref doesn't lock it
+// itself: it publishes its commute fns as a request. Whichever committer
+// gets the write lock becomes the combiner: it applies the waiting requests
+// one after the other, publishes the result as one version at one commit
+// point, and wakes the other committers up. The lock is taken once per batch
+// instead of once per transaction.
+// A request whose fns or validator throw is left out of the batch, and its
+// committer gets the exception. Watches are notified once per batch.
+final class RefCombiner {
+
+    // Request states
+    static final int WAITING = 0;
+    static final int CLAIMED = 1; // by a combiner
+    static final int DONE = 2;
+    static final int CANCELLED = 3; // by its committer, after a timeout
+
+    // Maximum number of requests a combiner handles in one batch
+    static final int MAX_BATCH = 64;
+    // Time a waiting committer parks before it checks the lock again, if the
+    // combiner doesn't wake it up first
+    static final long PARK_NANOS = 50 * 1000;
+
+    static final class Request {
+        final ArrayList<TransactionalContext.CFn> fns;
+        final Thread thread = Thread.currentThread();
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        // Exception thrown by fns or validator, set before DONE
+        volatile Throwable error;
+        // Inevitable writer that made the own committer's combine give up,
+        // to wait for before retrying. Only used by the committer's thread.
+        LockingTransaction.Info waitFor;
+
+        Request(ArrayList<TransactionalContext.CFn> fns) {
+            this.fns = fns;
+        }
+    }
+
+    final Ref ref;
+    final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<Request>();
+
+    RefCombiner(Ref ref) {
+        this.ref = ref;
+    }
+
+    // Commit the commute fns of tx on ref, possibly in a batch with other
+    // transactions. Throws RetryEx if that didn't work.
+    void commit(LockingTransaction tx, ArrayList<TransactionalContext.CFn> fns) {
+        Request req = new Request(fns);
+        queue.add(req);
+        long deadline = System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(tx.lockWaitMillis());
+        while (true) {
+            int s = req.state.get();
+            if (s == DONE) {
+                if (req.error != null)
+                    throw Util.sneakyThrow(req.error);
+                return;
+            }
+            if (s == WAITING && ref.lock.writeLock().tryLock()) {
+                Object[] change;
+                try {
+                    change = combine(tx, req);
+                    if (change != null && PostCommit.async
+                            && ref.getWatches().count() > 0) {
+                        // Submit while locked, to keep commit order
+                        PostCommit.submit(new Object[]{ref, change[0], change[1]},
+                                3, null);
+                        change = null;
+                    }
+                } finally {
+                    ref.unlockWrite();
+                }
+                if (req.waitFor != null) {
+                    // Retrying before the inevitable writer has finished
+                    // would fail again: wait for it, after stopping and
+                    // releasing the lock, as block-and-bail does.
+                    tx.stop(LockingTransaction.RETRY);
+                    tx.awaitFinished(req.waitFor);
+                    throw new LockingTransaction.RetryEx();
+                }
+                if (change != null && ref.getWatches().count() > 0)
+                    ref.notifyWatches(change[0], change[1]);
+                continue;
+            }
+            if (s == WAITING && System.nanoTime() - deadline > 0) {
+                if (req.state.compareAndSet(WAITING, CANCELLED)) {
+                    ref.conflict(RefProfiler.LOCK_TIMEOUT);
+                    throw new LockingTransaction.RetryEx(TransactionStats.LOCK_TIMEOUT);
+                }
+                continue;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+    }
+
+    // Combine a batch of waiting requests. Returns the old and new value if a
+    // new version was published, else null. If an inevitable writer holds
+    // the ref, own is cancelled and the writer is kept in own.waitFor.
+    // Must be called while holding the write lock, with own still waiting.
+    private Object[] combine(LockingTransaction tx, Request own) {
+        LockingTransaction.Info latest = ref.latestWriter;
+        if (latest != null && latest.running() && !ref.barge(tx, latest)) {
+            // Someone is writing this ref: we can't commit without
+            // conflicting with it.
+            if (own.state.compareAndSet(WAITING, CANCELLED)) {
+                if (!latest.inevitable)
+                    throw new LockingTransaction.RetryEx();
+                own.waitFor = latest;
+            }
+            return null;
+        }
+
+        Object oldval = ref.tvals == null ? null : ref.tvals.val;
+        Object val = oldval;
+        boolean changed = false;
+        ArrayList<Request> batch = new ArrayList<Request>();
+        Request r;
+        while (batch.size() < MAX_BATCH && (r = queue.poll()) != null) {
+            if (!r.state.compareAndSet(WAITING, CLAIMED))
+                continue;
+            try {
+                Object v = val;
+                for (TransactionalContext.CFn f : r.fns)
+                    v = f.fn.applyTo(RT.cons(v, f.args));
+                ref.validate(ref.getValidator(), v);
+                val = v;
+                changed = true;
+            } catch (Throwable t) {
+                r.error = t;
+            }
+            batch.add(r);
+        }
+        if (changed)
+            ref.commitVal(val, LockingTransaction.clock.commitPoint());
+        for (Request b : batch) {
+            b.state.set(DONE);
+            if (b != own)
+                LockSupport.unpark(b.thread);
+        }
+        return changed ? new Object[]{oldval, val} : null;
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Adaptive history of a ref: its old versions (not the latest one, which is
+// in Ref.tvals), stored as (point, val) pairs in a ring buffer, newest first.
+//
+// The number of versions kept (limit) adapts to the readers: it doubles when
+// readers fault (didn't find a version old enough), and halves, down to the
+// depth readers actually used, after SHRINK_PERIOD commits without faults.
+// It always stays between the ref's min and max history. The buffer is
+// replaced by a bigger or smaller one when the limit doesn't fit it well.
+//
+// Writers (commitVal) modify the buffer while holding the ref's write lock.
+// Readers don't lock: they validate each slot they read against its point.
+// A writer first marks a slot as WRITING, then writes its val and finally its
+// point. Points of a ref are unique and increase, so a reader that sees the
+// same point before and after reading the val has a consistent pair. Along
+// the ring, points must decrease: a point that is not smaller than the
+// previous one means the writer has wrapped around under the reader, and the
+// reader returns INCONSISTENT (and retries with the read lock).
+final class RefHistory {
+
+    static final long WRITING = -1;
+    static final int MIN_CAPACITY = 4;
+    static final int SHRINK_PERIOD = 64;
+
+    // Returned by find if the buffer was modified while reading it
+    static final Ref.TVal INCONSISTENT = new Ref.TVal(null, WRITING);
+
+    final AtomicLongArray points;
+    final AtomicReferenceArray<Object> vals;
+    final int mask;
+    // Index of the newest version (high 32 bits) and number of versions (low
+    // 32 bits), in one field so readers get both consistently.
+    volatile long state;
+
+    // Only accessed while holding the write lock:
+    // Number of versions to keep
+    int limit;
+    // Commits since the history grew or was last checked for shrinking
+    int commits;
+
+    // Deepest version (0 is newest) readers used since the last check for
+    // shrinking, or -1. Updated by readers without synchronization, so it is
+    // approximate.
+    int maxDepth = -1;
+
+    RefHistory(int limit) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < limit)
+            capacity <<= 1;
+        this.points = new AtomicLongArray(capacity);
+        this.vals = new AtomicReferenceArray<Object>(capacity);
+        this.mask = capacity - 1;
+        this.limit = limit;
+        this.state = ((long) mask << 32); // head just before slot 0, empty
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int count() {
+        return (int) state;
+    }
+
+    // Forget all versions.
+    void clear() {
+        state = state & 0xFFFFFFFF00000000L;
+        // Drop the vals, so they can be garbage collected
+        for (int i = 0; i <= mask; i++) {
+            points.set(i, WRITING);
+            vals.set(i, null);
+        }
+    }
+
+    // Most recent version committed at or before point, null if it isn't kept
+    // anymore, or INCONSISTENT (see above). newer is the point of the version
+    // newer than the ones in this history (the ref's latest version).
+    Ref.TVal find(long point, long newer) {
+        long s = state;
+        int head = (int) (s >>> 32);
+        int count = (int) s;
+        for (int k = 0; k < count; k++) {
+            int i = (head - k) & mask;
+            long p = points.get(i);
+            if (p == WRITING || p >= newer)
+                return INCONSISTENT;
+            if (p <= point) {
+                Object val = vals.get(i);
+                if (points.get(i) != p)
+                    return INCONSISTENT;
+                if (k > maxDepth)
+                    maxDepth = k;
+                return new Ref.TVal(val, p);
+            }
+            newer = p;
+        }
+        return null;
+    }
+
+    // Add old, the version that is being replaced as the latest one, after
+    // adapting the limit to faults (number of faults since the last commit).
+    // Returns the history to use from now on: this one or a resized copy.
+    // Must be called while holding the write lock.
+    RefHistory push(Ref.TVal old, int faults, int minHistory, int maxHistory) {
+        if (faults > 0 && limit < maxHistory) {
+            limit = Math.max(limit * 2, limit + faults);
+            commits = 0;
+            maxDepth = -1;
+        } else if (++commits >= SHRINK_PERIOD) {
+            int used = maxDepth + 1;
+            if (used < limit / 2)
+                limit = Math.max(used, limit / 2);
+            commits = 0;
+            maxDepth = -1;
+        }
+        limit = Math.max(minHistory, Math.min(maxHistory, limit));
+
+        RefHistory h = this;
+        if (limit > capacity() ||
+                (capacity() > MIN_CAPACITY && limit * 4 <= capacity()))
+            h = resize();
+        h.add(old);
+        return h;
+    }
+
+    // Copy of this history, with a capacity that fits limit.
+    private RefHistory resize() {
+        RefHistory h = new RefHistory(limit);
+        h.commits = commits;
+        h.maxDepth = maxDepth;
+        long s = state;
+        int head = (int) (s >>> 32);
+        int n = Math.min((int) s, limit);
+        // Oldest first, so they end up in the same order
+        for (int k = n - 1; k >= 0; k--) {
+            int i = (head - k) & mask;
+            h.add(new Ref.TVal(vals.get(i), points.get(i)));
+        }
+        return h;
+    }
+
+    // Add version as the newest one, dropping the oldest one if there are
+    // more than limit.
+    void add(Ref.TVal version) {
+        long s = state;
+        int head = (int) (s >>> 32);
+        int count = (int) s;
+        if (limit == 0) {
+            state = ((long) head << 32);
+            return;
+        }
+        int i = (head + 1) & mask;
+        points.set(i, WRITING);
+        vals.set(i, version.val);
+        points.set(i, version.point);
+        count = Math.min(count + 1, limit);
+        state = ((long) i << 32) | count;
+    }
+
+}
@@ -0,0 +1,154 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// Conflict profiler: counts conflicts per ref, to find the refs that cause
+// most retries. Off by default; setSampleRate(n) records 1 in n conflicts
+// (1 records all of them), setSampleRate(0) turns it off again.
+// For every ref, we keep its id, its meta, and the first frame of user code
+// (outside clojure.lang and clojure.core) of the first conflict recorded for
+// it. Refs themselves aren't kept, so they can still be garbage collected.
+public class RefProfiler {
+
+    // Conflict kinds
+    static final int LOCK_TIMEOUT = 0; // timed out waiting for its write lock
+    static final int BARGE_WON = 1; // killed its latest writer
+    static final int BARGE_LOST = 2; // had to wait for its latest writer
+    static final int READ_RETRY = 3; // newer version than our read point
+    static final int READ_FAULT = 4; // no version old enough in history
+    static final int EARLY_KILL = 5; // killed a dependent (early validation)
+    static final String[] KINDS = {"lock-timeouts", "barges-won",
+            "barges-lost", "read-retries", "read-faults", "early-kills"};
+
+    static volatile int sampleRate = 0;
+
+    static final ConcurrentHashMap<Long, Entry> entries =
+            new ConcurrentHashMap<Long, Entry>();
+
+    // Conflicts recorded for one ref
+    static class Entry {
+        final long id;
+        final IPersistentMap meta;
+        final String callSite;
+        final AtomicLongArray counts = new AtomicLongArray(KINDS.length);
+
+        Entry(Ref ref) {
+            this.id = ref.id;
+            this.meta = ref.meta();
+            this.callSite = callSite();
+        }
+
+        long total() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++)
+                total += counts.get(i);
+            return total;
+        }
+
+        IPersistentMap toMap() {
+            IPersistentMap m = RT.map(
+                    Keyword.intern("id"), id,
+                    Keyword.intern("meta"), meta,
+                    Keyword.intern("call-site"), callSite,
+                    Keyword.intern("total"), total());
+            for (int i = 0; i < KINDS.length; i++)
+                m = m.assoc(Keyword.intern(KINDS[i]), counts.get(i));
+            return m;
+        }
+    }
+
+    public static int getSampleRate() {
+        return sampleRate;
+    }
+
+    public static void setSampleRate(int sampleRate) {
+        if (sampleRate < 0)
+            throw new IllegalArgumentException("Sample rate can't be negative");
+        RefProfiler.sampleRate = sampleRate;
+    }
+
+    public static void reset() {
+        entries.clear();
+    }
+
+    // Record conflict of kind on ref, if it is sampled.
+    static void record(Ref ref, int kind) {
+        int rate = sampleRate;
+        if (rate <= 0)
+            return;
+        if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)
+            return;
+        Entry e = entries.get(ref.id);
+        if (e == null) {
+            Entry created = new Entry(ref);
+            e = entries.putIfAbsent(ref.id, created);
+            if (e == null)
+                e = created;
+        }
+        e.counts.incrementAndGet(kind);
+    }
+
+    // Report of the n refs with the most (sampled) conflicts, as a vector of
+    // maps with keys :id, :meta, :call-site, :total and a count per kind of
+    // conflict, most conflicts first.
+    public static IPersistentVector report(int n) {
+        ArrayList<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.total(), a.total());
+            }
+        });
+        ITransientCollection report = PersistentVector.EMPTY.asTransient();
+        for (int i = 0; i < sorted.size() && i < n; i++)
+            report = report.conj(sorted.get(i).toMap());
+        return (IPersistentVector) report.persistent();
+    }
+
+    // First frame of user code on the current stack, or null.
+    static String callSite() {
+        StackWalker.StackFrame f = StackWalker.getInstance().walk(
+                new Function<Stream<StackWalker.StackFrame>, StackWalker.StackFrame>() {
+                    public StackWalker.StackFrame apply(
+                            Stream<StackWalker.StackFrame> frames) {
+                        Iterator<StackWalker.StackFrame> it = frames.iterator();
+                        while (it.hasNext()) {
+                            StackWalker.StackFrame frame = it.next();
+                            if (!isInternal(frame.getClassName()))
+                                return frame;
+                        }
+                        return null;
+                    }
+                });
+        if (f == null)
+            return null;
+        return Compiler.demunge(f.getClassName()) + " (" + f.getFileName() +
+                ":" + f.getLineNumber() + ")";
+    }
+
+    private static boolean isInternal(String className) {
+        return className.startsWith("clojure.lang.") ||
+                className.startsWith("clojure.core") ||
+                className.startsWith("chocola.core") ||
+                className.startsWith("java.") ||
+                className.startsWith("jdk.");
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Ref that can only be commuted, for hot counters and accumulators.
+// Its value is spread over a number of cells (like a LongAdder): a commit
+// applies the commute fns of the transaction to one cell, chosen by thread,
+// using compare-and-set, without taking any lock or conflicting with other
+// transactions. Deref combines the cells using combine, an associative and
+// commutative fn with identity as identity element.
+// For this to be correct, the commute fns must distribute over combine:
+// (f (combine a b) x) = (combine (f a x) b), e.g. (commute r + 1) with
+// combine + and identity 0, or (commute r conj x) with combine
+// clojure.set/union and identity #{}. Then applying them to a cell c is
+// the same as combining c with a delta, the fns applied to identity.
+// A commit computes the delta before its commit point, so a commute fn that
+// throws aborts the transaction like a failed validation. After the commit
+// point it only combines the delta into a cell (combine must not throw).
+// The cells are updated right after the rest of the transaction has
+// committed, not atomically with it: other transactions can see its other
+// effects slightly before its effects on this ref. Deref returns the
+// current combined value; in a transaction it is read once per attempt.
+// Sharded refs can't be set, altered or ensured, and validators and
+// watches aren't supported.
+public class ShardedRef extends Ref {
+
+    final IFn combine;
+    final Object identity;
+    final AtomicReferenceArray<Object> cells;
+    final int mask;
+
+    public ShardedRef(Object initVal, IFn combine, Object identity) {
+        this(initVal, combine, identity, null);
+    }
+
+    public ShardedRef(Object initVal, IFn combine, Object identity,
+                      IPersistentMap meta) {
+        super(initVal, meta);
+        this.combine = combine;
+        this.identity = identity;
+        int n = 1;
+        while (n < 2 * Runtime.getRuntime().availableProcessors())
+            n <<= 1;
+        this.cells = new AtomicReferenceArray<Object>(n);
+        this.mask = n - 1;
+        cells.set(0, initVal);
+        for (int i = 1; i < n; i++)
+            cells.set(i, identity);
+    }
+
+    // Combination of all cells.
+    Object combined() {
+        Object val = cells.get(0);
+        for (int i = 1; i <= mask; i++)
+            val = combine.invoke(val, cells.get(i));
+        return val;
+    }
+
+    // Delta of commute fns: the fns applied to identity. Can throw.
+    Object delta(ArrayList<TransactionalContext.CFn> fns) {
+        Object val = identity;
+        for (TransactionalContext.CFn f : fns)
+            val = f.fn.applyTo(RT.cons(val, f.args));
+        return val;
+    }
+
+    // Combine delta into the cell of the current thread. If another thread
+    // updated the cell at the same time, try the next cell.
+    void add(Object delta) {
+        long id = Thread.currentThread().getId();
+        int i = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (true) {
+            Object old = cells.get(i);
+            if (cells.compareAndSet(i, old, combine.invoke(old, delta)))
+                return;
+            i = (i + 1) & mask;
+        }
+    }
+
+    // Versions: there is no history, the only version is the current one.
+
+    TVal latest() {
+        return new TVal(combined(), 0);
+    }
+
+    TVal versionAt(long point) {
+        return latest();
+    }
+
+    public int getHistoryCount() {
+        return 0;
+    }
+
+    public Object commute(IFn fn, ISeq args) {
+        return AFuture.getContextEx().doShardedCommute(this, fn, args);
+    }
+
+    public Object set(Object val) {
+        throw new IllegalStateException("Can't set a sharded ref, use commute");
+    }
+
+    public Object alter(IFn fn, ISeq args) {
+        throw new IllegalStateException("Can't alter a sharded ref, use commute");
+    }
+
+    public void touch() {
+        throw new IllegalStateException("Can't ensure a sharded ref");
+    }
+
+    public void setValidator(IFn vf) {
+        throw new IllegalStateException("Sharded refs don't support validators");
+    }
+
+    public IRef addWatch(Object key, IFn callback) {
+        throw new IllegalStateException("Sharded refs don't support watches");
+    }
+
+}
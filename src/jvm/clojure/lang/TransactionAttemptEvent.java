@@ -0,0 +1,61 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight Recorder event for one attempt of a transaction. Only loaded when
+// TransactionStats.setJfrEnabled(true) is called.
+@Name("chocola.TransactionAttempt")
+@Label("Transaction Attempt")
+@Category({"Chocola", "STM"})
+@Description("One attempt to run a transaction, until it commits or retries")
+class TransactionAttemptEvent extends Event {
+
+    @Label("Start Point")
+    long startPoint;
+
+    @Label("Read Point")
+    long readPoint;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Outcome")
+    @Description("committed, or the cause of the retry")
+    String outcome;
+
+    @Label("Write Set Size")
+    int writeSetSize;
+
+    static Object start(LockingTransaction tx, int attempt) {
+        TransactionAttemptEvent event = new TransactionAttemptEvent();
+        if (!event.isEnabled())
+            return null;
+        event.startPoint = tx.startPoint;
+        event.readPoint = tx.readPoint;
+        event.attempt = attempt;
+        event.begin();
+        return event;
+    }
+
+    static void end(Object e, String outcome, int writeSetSize) {
+        TransactionAttemptEvent event = (TransactionAttemptEvent) e;
+        event.outcome = outcome;
+        event.writeSetSize = writeSetSize;
+        event.commit();
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+// Strategy that hands out time points to transactions: a read point at the
+// start of every attempt, and a commit point for every commit that writes.
+// Commit points define the total order on transactions.
+// All clocks are built on LockingTransaction.lastPoint, so it is safe to
+// switch clocks while transactions are running. For that reason only the two
+// clocks below exist (GLOBAL and SHARED): the constructor is private, so
+// other code can't add one.
+public abstract class TransactionClock {
+
+    private TransactionClock() {
+    }
+
+    // Read point for a new attempt. All versions committed at or before this
+    // point will be visible to the attempt.
+    abstract long readPoint();
+
+    // Commit point for a writing commit. Must be larger than all read points
+    // handed out before.
+    abstract long commitPoint();
+
+
+    // The original clock: every attempt and every commit consumes a new
+    // point. Read points are unique, but every attempt writes to the shared
+    // counter.
+    public static final TransactionClock GLOBAL = new TransactionClock() {
+        long readPoint() {
+            return LockingTransaction.lastPoint.incrementAndGet();
+        }
+
+        long commitPoint() {
+            return LockingTransaction.lastPoint.incrementAndGet();
+        }
+
+        public String toString() {
+            return "global";
+        }
+    };
+
+    // TL2-style clock: an attempt reads the latest commit point without
+    // incrementing it, only writing commits increment the counter. Read-only
+    // attempts and retries therefore don't write to shared memory.
+    // Several transactions can share a read point. A writer that is still
+    // publishing the versions for the read point holds their write locks,
+    // which makes readers wait until it's done (see Ref.versionAt).
+    public static final TransactionClock SHARED = new TransactionClock() {
+        long readPoint() {
+            return LockingTransaction.lastPoint.get();
+        }
+
+        long commitPoint() {
+            return LockingTransaction.lastPoint.incrementAndGet();
+        }
+
+        public String toString() {
+            return "shared";
+        }
+    };
+
+}
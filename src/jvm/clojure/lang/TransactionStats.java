@@ -0,0 +1,376 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+// Statistics of a transaction, over all its attempts.
+// Only collected while stats are enabled (setEnabled, or the system property
+// chocola.stats=true): otherwise transactions don't create a TransactionStats
+// and the only cost is a null check at every attempt.
+// When a transaction finishes, its stats are added to the global counters,
+// which are published through JMX as chocola:type=TransactionStats.
+public class TransactionStats {
+
+    // Retry causes
+    static final int CONFLICT = 0; // newer version committed by another tx
+    static final int LOCK_TIMEOUT = 1; // timed out waiting for a write lock
+    static final int COMMUTE_LOCK_TIMEOUT = 2; // idem, for commute at commit
+    static final int READ_FAULT = 3; // no version old enough in history
+    static final int BLOCK_AND_BAIL = 4; // waited for another writer
+    static final int BARGED = 5; // killed by another transaction
+    static final int STOPPED = 6; // stopped by one of our own futures
+    static final String[] CAUSES = {"conflict", "lock-timeout",
+            "commute-lock-timeout", "read-fault", "block-and-bail", "barged",
+            "stopped"};
+
+    // Outcomes of a transaction
+    static final int COMMITTED = 0;
+    static final int THREW = 1; // exception from body, future or validator
+    static final int TIMED_OUT = 2;
+    static final int RETRY_LIMIT = 3; // failed after reaching retry limit
+    static final String[] OUTCOMES = {"committed", "threw", "timed-out",
+            "retry-limit"};
+
+
+    // Per transaction
+
+    // Number of attempts started
+    int attempts;
+    // Number of retries, per cause
+    final int[] retries = new int[CAUSES.length];
+    // Number of other transactions this one barged
+    int barges;
+    // Number of times a nested transaction was retried on its own
+    int nestedRetries;
+    // Duration of the (last) commit, in ns
+    long commitNanos;
+    // Number of refs written by the (last) commit
+    int writeSetSize;
+    // JFR event of current attempt (a TransactionAttemptEvent), or null
+    Object event;
+
+    void attemptStarted(LockingTransaction tx) {
+        attempts++;
+        if (jfrEnabled)
+            event = TransactionAttemptEvent.start(tx, attempts);
+    }
+
+    void attemptRetried(int cause) {
+        retries[cause]++;
+        if (event != null) {
+            TransactionAttemptEvent.end(event, CAUSES[cause], 0);
+            event = null;
+        }
+    }
+
+    void attemptCommitted(int writeSetSize, long commitNanos) {
+        this.writeSetSize = writeSetSize;
+        this.commitNanos = commitNanos;
+        if (event != null) {
+            TransactionAttemptEvent.end(event, "committed", writeSetSize);
+            event = null;
+        }
+    }
+
+    // Add stats of finished transaction to global stats. If it threw, the
+    // event of its last attempt hasn't ended yet.
+    void finished(int outcome) {
+        if (event != null) {
+            TransactionAttemptEvent.end(event, OUTCOMES[outcome], 0);
+            event = null;
+        }
+        TRANSACTIONS.increment();
+        ATTEMPTS.add(attempts);
+        ATTEMPTS_PER_TRANSACTION.record(attempts);
+        for (int i = 0; i < retries.length; i++) {
+            if (retries[i] > 0)
+                RETRIES[i].add(retries[i]);
+        }
+        BARGES.add(barges);
+        NESTED_RETRIES.add(nestedRetries);
+        switch (outcome) {
+            case COMMITTED:
+                COMMITS.increment();
+                COMMIT_NANOS.record(commitNanos);
+                WRITE_SET_SIZE.record(writeSetSize);
+                break;
+            case THREW:
+                EXCEPTIONS.increment();
+                break;
+            case TIMED_OUT:
+                TIMEOUTS.increment();
+                break;
+            default:
+                RETRY_LIMIT_FAILURES.increment();
+        }
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public IPersistentMap toMap() {
+        return RT.map(
+                Keyword.intern("attempts"), attempts,
+                Keyword.intern("retries"), causesMap(retries),
+                Keyword.intern("barges"), barges,
+                Keyword.intern("nested-retries"), nestedRetries,
+                Keyword.intern("commit-nanos"), commitNanos,
+                Keyword.intern("write-set-size"), writeSetSize);
+    }
+
+    public String toString() {
+        return toMap().toString();
+    }
+
+    private static IPersistentMap causesMap(int[] counts) {
+        IPersistentMap m = PersistentArrayMap.EMPTY;
+        for (int i = 0; i < counts.length; i++)
+            m = m.assoc(Keyword.intern(CAUSES[i]), counts[i]);
+        return m;
+    }
+
+
+    // Global
+
+    static volatile boolean enabled = Boolean.getBoolean("chocola.stats");
+    static volatile boolean jfrEnabled = false;
+
+    static final LongAdder TRANSACTIONS = new LongAdder();
+    static final LongAdder ATTEMPTS = new LongAdder();
+    static final LongAdder COMMITS = new LongAdder();
+    static final LongAdder EXCEPTIONS = new LongAdder();
+    static final LongAdder TIMEOUTS = new LongAdder();
+    static final LongAdder RETRY_LIMIT_FAILURES = new LongAdder();
+    static final LongAdder BARGES = new LongAdder();
+    static final LongAdder NESTED_RETRIES = new LongAdder();
+    static final LongAdder[] RETRIES = new LongAdder[CAUSES.length];
+    static final Histogram ATTEMPTS_PER_TRANSACTION = new Histogram();
+    static final Histogram COMMIT_NANOS = new Histogram();
+    static final Histogram WRITE_SET_SIZE = new Histogram();
+
+    static {
+        for (int i = 0; i < RETRIES.length; i++)
+            RETRIES[i] = new LongAdder();
+        if (enabled)
+            register();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Enable or disable stats. Transactions that are running keep their
+    // setting until they finish.
+    public static void setEnabled(boolean enabled) {
+        if (enabled)
+            register();
+        TransactionStats.enabled = enabled;
+    }
+
+    public static boolean isJfrEnabled() {
+        return jfrEnabled;
+    }
+
+    // Emit a JFR event (chocola.TransactionAttempt) for every attempt of a
+    // transaction, while stats are enabled.
+    public static void setJfrEnabled(boolean jfrEnabled) {
+        TransactionStats.jfrEnabled = jfrEnabled;
+    }
+
+    public static void reset() {
+        TRANSACTIONS.reset();
+        ATTEMPTS.reset();
+        COMMITS.reset();
+        EXCEPTIONS.reset();
+        TIMEOUTS.reset();
+        RETRY_LIMIT_FAILURES.reset();
+        BARGES.reset();
+        NESTED_RETRIES.reset();
+        for (LongAdder r : RETRIES)
+            r.reset();
+        ATTEMPTS_PER_TRANSACTION.reset();
+        COMMIT_NANOS.reset();
+        WRITE_SET_SIZE.reset();
+    }
+
+    // Global stats as a map. Histograms are vectors of counts: element i
+    // counts the values v with 2^(i-1) <= v < 2^i (element 0 counts 0).
+    public static IPersistentMap snapshot() {
+        IPersistentMap retries = PersistentArrayMap.EMPTY;
+        for (int i = 0; i < CAUSES.length; i++)
+            retries = retries.assoc(Keyword.intern(CAUSES[i]), RETRIES[i].sum());
+        return RT.map(
+                Keyword.intern("transactions"), TRANSACTIONS.sum(),
+                Keyword.intern("attempts"), ATTEMPTS.sum(),
+                Keyword.intern("commits"), COMMITS.sum(),
+                Keyword.intern("exceptions"), EXCEPTIONS.sum(),
+                Keyword.intern("timeouts"), TIMEOUTS.sum(),
+                Keyword.intern("retry-limit-failures"), RETRY_LIMIT_FAILURES.sum(),
+                Keyword.intern("barges"), BARGES.sum(),
+                Keyword.intern("nested-retries"), NESTED_RETRIES.sum(),
+                Keyword.intern("retries"), retries,
+                Keyword.intern("attempts-per-transaction"),
+                LazilyPersistentVector.create(ATTEMPTS_PER_TRANSACTION.counts()),
+                Keyword.intern("commit-nanos"),
+                LazilyPersistentVector.create(COMMIT_NANOS.counts()),
+                Keyword.intern("write-set-size"),
+                LazilyPersistentVector.create(WRITE_SET_SIZE.counts()));
+    }
+
+
+    // Histogram with power-of-two buckets.
+    static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void record(long value) {
+            int bucket = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+            buckets.incrementAndGet(Math.min(bucket, 63));
+        }
+
+        // Counts, without the trailing empty buckets
+        long[] counts() {
+            int n = buckets.length();
+            while (n > 0 && buckets.get(n - 1) == 0)
+                n--;
+            long[] counts = new long[n];
+            for (int i = 0; i < n; i++)
+                counts[i] = buckets.get(i);
+            return counts;
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++)
+                buckets.set(i, 0);
+        }
+    }
+
+
+    // JMX
+
+    public interface StatsMXBean {
+        boolean isEnabled();
+        void setEnabled(boolean enabled);
+        boolean isJfrEnabled();
+        void setJfrEnabled(boolean enabled);
+        long getTransactions();
+        long getAttempts();
+        long getCommits();
+        long getExceptions();
+        long getTimeouts();
+        long getRetryLimitFailures();
+        long getBarges();
+        long getNestedRetries();
+        Map<String, Long> getRetries();
+        long[] getAttemptsPerTransactionHistogram();
+        long[] getCommitNanosHistogram();
+        long[] getWriteSetSizeHistogram();
+        void reset();
+    }
+
+    static class Stats implements StatsMXBean {
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            TransactionStats.setEnabled(enabled);
+        }
+
+        public boolean isJfrEnabled() {
+            return jfrEnabled;
+        }
+
+        public void setJfrEnabled(boolean enabled) {
+            TransactionStats.setJfrEnabled(enabled);
+        }
+
+        public long getTransactions() {
+            return TRANSACTIONS.sum();
+        }
+
+        public long getAttempts() {
+            return ATTEMPTS.sum();
+        }
+
+        public long getCommits() {
+            return COMMITS.sum();
+        }
+
+        public long getExceptions() {
+            return EXCEPTIONS.sum();
+        }
+
+        public long getTimeouts() {
+            return TIMEOUTS.sum();
+        }
+
+        public long getRetryLimitFailures() {
+            return RETRY_LIMIT_FAILURES.sum();
+        }
+
+        public long getBarges() {
+            return BARGES.sum();
+        }
+
+        public long getNestedRetries() {
+            return NESTED_RETRIES.sum();
+        }
+
+        public Map<String, Long> getRetries() {
+            Map<String, Long> m = new TreeMap<String, Long>();
+            for (int i = 0; i < CAUSES.length; i++)
+                m.put(CAUSES[i], RETRIES[i].sum());
+            return m;
+        }
+
+        public long[] getAttemptsPerTransactionHistogram() {
+            return ATTEMPTS_PER_TRANSACTION.counts();
+        }
+
+        public long[] getCommitNanosHistogram() {
+            return COMMIT_NANOS.counts();
+        }
+
+        public long[] getWriteSetSizeHistogram() {
+            return WRITE_SET_SIZE.counts();
+        }
+
+        public void reset() {
+            TransactionStats.reset();
+        }
+    }
+
+    private static boolean registered = false;
+
+    // Register the MBean with the platform MBean server, if that hasn't
+    // happened yet. Called when stats are enabled; call it explicitly to be
+    // able to enable stats over JMX.
+    public static synchronized void register() {
+        if (registered)
+            return;
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Stats(),
+                    new ObjectName("chocola:type=TransactionStats"));
+        } catch (Exception e) {
+            // No JMX (or already registered by another class loader): stats
+            // are still available through snapshot
+        }
+    }
+
+}
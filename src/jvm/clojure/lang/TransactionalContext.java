@@ -11,11 +11,18 @@
 package clojure.lang;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class TransactionalContext {
 
+    // Time a committer waits for a write lock that is only read-locked
+    static final long ENSURE_WAIT_NANOS = 1000 * 1000; // 1 milli
+
     // Commute function
     static class CFn {
         final IFn fn;
@@ -27,66 +34,348 @@ public class TransactionalContext {
         }
     }
 
-    // Notify watches
-    private static class Notify {
-        final public Ref ref;
-        final public Object oldval;
-        final public Object newval;
+    // Arrays reused by the commits of a thread, so that a commit doesn't
+    // allocate: the refs to write (in lock order), and (ref, oldval, newval)
+    // for the refs with watches to notify.
+    static class CommitBuffer {
+        private static final int MAX_KEPT = 1024;
+        private static final ThreadLocal<CommitBuffer> BUFFERS =
+                new ThreadLocal<CommitBuffer>() {
+                    protected CommitBuffer initialValue() {
+                        return new CommitBuffer();
+                    }
+                };
+
+        Ref[] refs = new Ref[16];
+        Object[] notify = new Object[3 * 4];
+        boolean inUse = false;
+
+        // Buffer of the current thread, or a new one if it is in use (by a
+        // commit in a validator or commute fn).
+        static CommitBuffer acquire() {
+            CommitBuffer buf = BUFFERS.get();
+            if (buf.inUse)
+                return new CommitBuffer();
+            buf.inUse = true;
+            return buf;
+        }
+
+        Ref[] refs(int n) {
+            if (refs.length < n)
+                refs = new Ref[Integer.highestOneBit(n) << 1];
+            return refs;
+        }
+
+        int addNotify(int k, Ref ref, Object oldval, Object newval) {
+            if (k + 3 > notify.length)
+                notify = Arrays.copyOf(notify, notify.length * 2);
+            notify[k] = ref;
+            notify[k + 1] = oldval;
+            notify[k + 2] = newval;
+            return k + 3;
+        }
 
-        Notify(Ref ref, Object oldval, Object newval) {
-            this.ref = ref;
-            this.oldval = oldval;
-            this.newval = newval;
+        // Clear the buffer, so it doesn't keep refs or values alive.
+        void release(int n, int nnotify) {
+            if (refs.length > MAX_KEPT)
+                refs = new Ref[16];
+            else
+                Arrays.fill(refs, 0, n, null);
+            if (notify.length > MAX_KEPT)
+                notify = new Object[3 * 4];
+            else
+                Arrays.fill(notify, 0, nnotify, null);
+            inUse = false;
         }
     }
 
-    // Tree of vals
-    static class Vals<K, V> {
-        final Map<K, V> vals = new HashMap<K, V>();
-        final Vals<K, V> prev;
+    // Map from refs to values: an open-addressed hash table (with linear
+    // probing) on the ids of the refs. The arrays are only allocated on the
+    // first put.
+    // A map can be forked: the fork and the original then share their
+    // arrays, and whichever writes first copies them (copy-on-write). This
+    // way, a child future sees the values of its parent at the moment it was
+    // created, and a lookup never needs more than one table.
+    // Not thread-safe: a map is only used by the future that owns it.
+    static class RefMap<V> implements Iterable<Ref> {
+        private static final int INITIAL_CAPACITY = 8;
 
-        Vals() { this.prev = null; }
-        Vals(Vals<K, V> prev) { this.prev = prev; }
+        private Ref[] keys;
+        private Object[] values;
+        private int size;
+        // Arrays are shared with a fork: copy them before writing
+        private boolean shared;
 
-        public V get(K key) {
-            V val = vals.get(key);
-            if (val == null && prev != null)
-                return prev.get(key);
-            return val;
+        RefMap() {
+        }
+
+        private RefMap(Ref[] keys, Object[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+            this.shared = true;
+        }
+
+        // Slot for ref, spreading sequential ids over the table
+        private static int slot(Ref ref, int mask) {
+            return (int) ((ref.id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        private int find(Ref ref) {
+            if (keys == null)
+                return -1;
+            int mask = keys.length - 1;
+            for (int i = slot(ref, mask); ; i = (i + 1) & mask) {
+                Ref k = keys[i];
+                if (k == ref)
+                    return i;
+                if (k == null)
+                    return -1;
+            }
+        }
+
+        // Make sure the arrays are not shared and can hold n entries,
+        // re-hashing them into new arrays if necessary.
+        private void prepareWrite(int n) {
+            if (keys == null) {
+                keys = new Ref[INITIAL_CAPACITY];
+                values = new Object[INITIAL_CAPACITY];
+                return;
+            }
+            int capacity = keys.length;
+            while (n * 4 > capacity * 3) // load factor 0.75
+                capacity *= 2;
+            if (!shared && capacity == keys.length)
+                return;
+            Ref[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new Ref[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                Ref k = oldKeys[j];
+                if (k != null) {
+                    int i = slot(k, mask);
+                    while (keys[i] != null)
+                        i = (i + 1) & mask;
+                    keys[i] = k;
+                    values[i] = oldValues[j];
+                }
+            }
+            shared = false;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(Ref ref) {
+            int i = find(ref);
+            return i < 0 ? null : (V) values[i];
+        }
+
+        boolean containsKey(Ref ref) {
+            return find(ref) >= 0;
+        }
+
+        void put(Ref ref, V value) {
+            prepareWrite(size + 1);
+            int mask = keys.length - 1;
+            int i = slot(ref, mask);
+            while (keys[i] != null && keys[i] != ref)
+                i = (i + 1) & mask;
+            if (keys[i] == null) {
+                keys[i] = ref;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        boolean remove(Ref ref) {
+            if (find(ref) < 0)
+                return false;
+            prepareWrite(size);
+            int mask = keys.length - 1;
+            int i = find(ref);
+            keys[i] = null;
+            values[i] = null;
+            size--;
+            // Re-insert the rest of the cluster, so lookups don't stop at the
+            // hole we just made
+            for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+                Ref k = keys[j];
+                Object v = values[j];
+                keys[j] = null;
+                values[j] = null;
+                int h = slot(k, mask);
+                while (keys[h] != null)
+                    h = (h + 1) & mask;
+                keys[h] = k;
+                values[h] = v;
+            }
+            return true;
+        }
+
+        // Fork this map: returns a map with the same contents, that shares
+        // the arrays of this one until either of them is written to.
+        RefMap<V> fork() {
+            if (keys == null)
+                return new RefMap<V>();
+            shared = true;
+            return new RefMap<V>(keys, values, size);
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            keys = null;
+            values = null;
+            size = 0;
+            shared = false;
+        }
+
+        // Iterates over the refs (keys) of the map
+        public Iterator<Ref> iterator() {
+            final Ref[] ks = keys;
+            return new Iterator<Ref>() {
+                int i = advance(0);
+
+                private int advance(int j) {
+                    if (ks == null)
+                        return 0;
+                    while (j < ks.length && ks[j] == null)
+                        j++;
+                    return j;
+                }
+
+                public boolean hasNext() {
+                    return ks != null && i < ks.length;
+                }
+
+                public Ref next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    Ref r = ks[i];
+                    i = advance(i + 1);
+                    return r;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    // Set of refs, as a RefMap without values
+    static class RefSet extends RefMap<Object> {
+        void add(Ref ref) {
+            put(ref, null);
+        }
+
+        boolean contains(Ref ref) {
+            return containsKey(ref);
         }
 
-        public V put(K key, V value) {
-            return vals.put(key, value);
+        void addAll(RefSet other) {
+            for (Ref ref : other)
+                add(ref);
+        }
+    }
+
+    // Children of a context that have finished (normally, with an
+    // exception, or cancelled), in the order they finished. A child queues
+    // itself when it's done; only the context's own thread takes them. It
+    // waits as a ForkJoinPool.ManagedBlocker, so that a pool running the
+    // children can compensate for a worker blocked on them.
+    static final class Completions implements ForkJoinPool.ManagedBlocker {
+        final LinkedBlockingQueue<AFuture> queue =
+                new LinkedBlockingQueue<AFuture>();
+        // Taken from queue by isReleasable or block, not returned yet
+        private AFuture next = null;
+
+        void add(AFuture future) {
+            queue.offer(future);
+        }
+
+        // Next finished child, or null if none has finished
+        AFuture poll() {
+            AFuture f = next != null ? next : queue.poll();
+            next = null;
+            return f;
+        }
+
+        // Next finished child, waiting for one if needed
+        AFuture take() throws InterruptedException {
+            ForkJoinPool.managedBlock(this);
+            return poll();
         }
 
-        public void putAll(Map<? extends K, ? extends V> m) {
-            vals.putAll(m);
+        public boolean isReleasable() {
+            return next != null || (next = queue.poll()) != null;
         }
 
-        public boolean isEmpty() {
-            return vals.isEmpty();
+        public boolean block() throws InterruptedException {
+            if (next == null)
+                next = queue.take();
+            return true;
         }
+    }
 
-        public void clear() {
-            this.vals.clear();
+    // Append the fns in from to those in to, per ref.
+    static void appendFns(RefMap<ArrayList<CFn>> to, RefMap<ArrayList<CFn>> from) {
+        for (Ref r : from) {
+            ArrayList<CFn> fns = to.get(r);
+            if (fns == null) {
+                to.put(r, fns = new ArrayList<CFn>());
+            }
+            fns.addAll(from.get(r));
         }
     }
 
     // Associated transaction
     final LockingTransaction tx;
+    // Read point of the attempt this context belongs to. Only moves forward
+    // when a nested transaction retries (see extendReadPoint).
+    long readPoint;
+    // Versions of refs at readPoint, as read by this attempt. Shared by the
+    // root context and all its children. A version at a read point never
+    // changes, so this can be read without touching the refs.
+    // A nested transaction has its own cache, for the reads it would undo.
+    final ConcurrentHashMap<Ref, Ref.TVal> readCache;
+    // Is this the context of a nested transaction (rather than of the root
+    // or of a future)?
+    final boolean nested;
+    // Closest enclosing context with another readCache: for a nested
+    // transaction, the context it is nested in. Null for the root.
+    final TransactionalContext outer;
 
-    // In transaction values of refs (written by set or commute)
-    // The keys of this map and its prev's = union of sets and commutes.
-    Vals<Ref, Object> vals;
+    // In transaction values of refs (written by set or commute), in this
+    // future and in its ancestors before it was created.
+    // The keys of this map = union of sets and commutes, of this future and
+    // the snapshot.
+    RefMap<Object> vals;
     // Refs set (not commuted) in this future. (Their value is in vals.)
-    final Set<Ref> sets = new HashSet<Ref>();
+    final RefSet sets = new RefSet();
     // Snapshot: in transaction values of refs at the moment of
     // creation of this future (set in any ancestor)
-    final Vals<Ref, Object> snapshot;
+    final RefMap<Object> snapshot;
     // Refs commuted, and list of commute functions
-    final Map<Ref, ArrayList<CFn>> commutes = new TreeMap<Ref, ArrayList<CFn>>();
+    final RefMap<ArrayList<CFn>> commutes = new RefMap<ArrayList<CFn>>();
+    // Sharded refs commuted, and list of commute functions. (Their value is
+    // in vals, but they are not in commutes: they are not locked at commit.)
+    final RefMap<ArrayList<CFn>> sharded = new RefMap<ArrayList<CFn>>();
+    // Deltas of the sharded refs, computed at commit before the commit point
+    // (see ShardedRef)
+    final RefMap<Object> shardedDeltas = new RefMap<Object>();
     // Ensured refs. All hold readLock.
-    final Set<Ref> ensures = new HashSet<Ref>();
+    final RefSet ensures = new RefSet();
+    // Ensured refs in optimistic ensure mode. They don't hold a lock, commit
+    // validates that they haven't changed since the read point.
+    final RefSet optimisticEnsures = new RefSet();
     // Spawned actors
     final List<Actor> spawned = new ArrayList<Actor>();
     // Possible become
@@ -95,31 +384,54 @@ public class TransactionalContext {
     final List<Agent.Action> actions = new ArrayList<Agent.Action>();
     // Forked futures
     final Set<Future> children = new HashSet<>();
-    // Futures (actually their contexts), merged into this one
-    final Set<TransactionalContext> merged = new HashSet<>();
+    // Children that have finished, in order. Created on the first fork.
+    Completions completions = null;
+    // Futures (actually their contexts), merged into this one. Created on
+    // the first merge.
+    Set<TransactionalContext> merged = null;
+    // Number of ref operations in this context and the children merged into
+    // it, if the transaction counts karma. Only written by its owner.
+    int karma = 0;
+    // Ref in sets that isn't locked yet: while the transaction's only write
+    // is a set of one ref, locking it is deferred to the commit (see
+    // commitSingle).
+    Ref deferred = null;
 
     // Create a root transactional context.
     TransactionalContext(LockingTransaction tx) {
         this.tx = tx;
+        this.readPoint = tx.readPoint;
+        this.readCache = new ConcurrentHashMap<Ref, Ref.TVal>();
+        this.nested = false;
+        this.outer = null;
         this.snapshot = null;
-        this.vals = new Vals<Ref, Object>();
+        this.vals = new RefMap<Object>();
     }
 
     // Create a child transactional context.
     TransactionalContext(TransactionalContext parent) {
+        this(parent, false);
+    }
+
+    // Create a child transactional context, for a future or a nested
+    // transaction.
+    TransactionalContext(TransactionalContext parent, boolean nested) {
+        // The child can write too: the parent's set can't stay deferred
+        parent.lockDeferred();
         this.tx = parent.tx;
-        // Initialize vals to parent vals
-        if (!parent.vals.isEmpty()) {
-            snapshot = parent.vals;
-            vals = new Vals<Ref, Object>(parent.vals);
-            parent.vals = new Vals<Ref, Object>(parent.vals);
+        this.readPoint = parent.readPoint;
+        this.nested = nested;
+        if (nested) {
+            this.readCache = new ConcurrentHashMap<Ref, Ref.TVal>();
+            this.outer = parent;
         } else {
-            // Optimization: if parent has not set anything, this can point
-            // straight to the parent's ancestor, and parent can "re-use"
-            // his vals. This way we avoid creating empty vals.
-            snapshot = parent.vals.prev;
-            vals = new Vals<Ref, Object>(parent.vals.prev);
+            this.readCache = parent.readCache;
+            this.outer = parent.outer;
         }
+        // Initialize vals to parent vals. The parent and this future will
+        // copy them when they write to them.
+        snapshot = parent.vals.fork();
+        vals = snapshot.fork();
     }
 
     // Indicate transaction as having stopped (with certain transaction state).
@@ -128,17 +440,26 @@ public class TransactionalContext {
         vals.clear();
         sets.clear();
         commutes.clear();
+        sharded.clear();
+        shardedDeltas.clear();
         for (Ref r : ensures) {
             r.unlockRead();
         }
         ensures.clear();
-        // TODO maybe force children to stop if they're still running
+        optimisticEnsures.clear();
+        deferred = null;
+        // TODO maybe force children to stop if they're still running (only
+        // done with early validation, see LockingTransaction.stop)
         try {
             if (status == LockingTransaction.COMMITTED) {
-                for (Agent.Action action : actions) {
-                    Agent.dispatchAction(action);
-                    // By now, transactional context is null, so dispatches
-                    // happen immediately
+                if (PostCommit.async) {
+                    PostCommit.submit(null, 0, actions);
+                } else {
+                    for (Agent.Action action : actions) {
+                        Agent.dispatchAction(action);
+                        // By now, transactional context is null, so
+                        // dispatches happen immediately
+                    }
                 }
                 for (Actor actor : spawned) {
                     Actor.start(actor); // TODO: doesn't actually start them, just adds them to the turn's list
@@ -158,6 +479,8 @@ public class TransactionalContext {
     Object doGet(Ref ref) {
         if (!tx.isNotKilled())
             throw new LockingTransaction.StoppedEx();
+        if (tx.countKarma)
+            karma++;
         Object val = vals.get(ref);
         if (val == null)
             return requireBeforeTransaction(ref);
@@ -167,19 +490,20 @@ public class TransactionalContext {
     // Get the version of ref before the transaction started, or null if the
     // version doesn't exist anymore.
     Ref.TVal getBeforeTransaction(Ref ref) {
-        try {
-            ref.lockRead();
-            if (ref.tvals == null)
-                throw new IllegalStateException(ref.toString() + " is unbound.");
-            Ref.TVal ver = ref.tvals;
-            do {
-                if (ver.point <= tx.readPoint)
-                    return ver;
-            } while ((ver = ver.prior) != ref.tvals);
-        } finally {
-            ref.unlockRead();
+        Ref.TVal ver = readCache.get(ref);
+        for (TransactionalContext c = outer; ver == null && c != null; c = c.outer)
+            ver = c.readCache.get(ref);
+        if (ver == null) {
+            if (tx.inevitable && !(ref instanceof ShardedRef)) {
+                // Read the latest version, and keep it until we commit
+                ver = ref.own(tx);
+            } else {
+                ver = ref.versionAt(readPoint);
+            }
+            if (ver != null)
+                readCache.put(ref, ver);
         }
-        return null;
+        return ver;
     }
 
     // Returns the value of ref before the transaction started, or throws
@@ -192,7 +516,8 @@ public class TransactionalContext {
             // No version of val precedes the read point (not enough versions
             // kept)
             ref.faults.incrementAndGet();
-            throw new LockingTransaction.RetryEx();
+            ref.conflict(RefProfiler.READ_FAULT);
+            throw new LockingTransaction.RetryEx(TransactionStats.READ_FAULT);
         }
     }
 
@@ -200,12 +525,35 @@ public class TransactionalContext {
     Object doSet(Ref ref, Object val) {
         if (!tx.isNotKilled())
             throw new LockingTransaction.StoppedEx();
+        if (tx.countKarma)
+            karma++;
+        if (tx.readOnly)
+            throw new IllegalStateException("Can't set in read-only transaction");
         if (commutes.containsKey(ref))
             throw new IllegalStateException("Can't set after commute");
+        if (tx.inevitable) {
+            if (!sets.contains(ref)) {
+                getBeforeTransaction(ref); // owns it
+                sets.add(ref);
+            }
+            vals.put(ref, val);
+            return val;
+        }
         if (!sets.contains(ref)) {
-            sets.add(ref);
             releaseIfEnsured(ref);
-            ref.lockWrite(tx);
+            optimisticEnsures.remove(ref);
+            boolean single = snapshot == null && sets.isEmpty() &&
+                    commutes.isEmpty() && ensures.isEmpty() &&
+                    optimisticEnsures.isEmpty() && children.isEmpty();
+            sets.add(ref);
+            if (single) {
+                deferred = ref;
+                if (tx.earlyValidation)
+                    ref.addDependent(tx.getInfo());
+            } else {
+                lockDeferred();
+                ref.lockWrite(tx);
+            }
         }
         vals.put(ref, val);
         return val;
@@ -215,13 +563,30 @@ public class TransactionalContext {
     void doEnsure(Ref ref) {
         if (!tx.isNotKilled())
             throw new LockingTransaction.StoppedEx();
+        if (tx.countKarma)
+            karma++;
         if (ensures.contains(ref))
             return;
+        if (tx.inevitable) {
+            // Owning it is enough
+            getBeforeTransaction(ref);
+            return;
+        }
+        lockDeferred();
+        // A read-only transaction can't cause write skew: its reads are
+        // consistent at its read point.
+        if (tx.readOnly)
+            return;
+        if (tx.optimisticEnsure) {
+            doOptimisticEnsure(ref);
+            return;
+        }
         ref.lockRead();
 
         // Someone completed a write after our snapshot => retry
         if (ref.tvals != null && ref.tvals.point > tx.readPoint) {
             ref.unlockRead();
+            ref.conflict(RefProfiler.READ_RETRY);
             throw new LockingTransaction.RetryEx();
         }
 
@@ -232,6 +597,7 @@ public class TransactionalContext {
             ref.unlockRead();
 
             if (latestWriter != tx.info) { // Not us, ensure is doomed
+                ref.conflict(RefProfiler.BARGE_LOST);
                 tx.blockAndBail(latestWriter);
             }
         } else {
@@ -239,18 +605,55 @@ public class TransactionalContext {
         }
     }
 
+    // Ensure without lock: only check the ref hasn't changed yet, commit
+    // checks again.
+    private void doOptimisticEnsure(Ref ref) {
+        if (sets.contains(ref) || optimisticEnsures.contains(ref))
+            return;
+        if (ref.tvals != null && ref.tvals.point > tx.readPoint) {
+            ref.conflict(RefProfiler.READ_RETRY);
+            throw new LockingTransaction.RetryEx();
+        }
+        if (tx.earlyValidation)
+            ref.addDependent(tx.getInfo());
+        optimisticEnsures.add(ref);
+    }
+
+    // Check that the optimistically ensured refs haven't changed since the
+    // read point, and that no one else is committing them. Called at commit,
+    // after locking the refs to write and taking the commit point: anyone
+    // who locks an ensured ref after this check commits after us.
+    private void validateOptimisticEnsures(LockingTransaction tx) {
+        for (Ref ref : optimisticEnsures) {
+            if (ref.lock.isWriteLocked() &&
+                    !ref.lock.isWriteLockedByCurrentThread()) {
+                ref.conflict(RefProfiler.LOCK_TIMEOUT);
+                throw new LockingTransaction.RetryEx();
+            }
+            if (ref.tvals != null && ref.tvals.point > tx.readPoint) {
+                ref.conflict(RefProfiler.READ_RETRY);
+                throw new LockingTransaction.RetryEx();
+            }
+        }
+    }
+
     // Commute
     Object doCommute(Ref ref, IFn fn, ISeq args) {
         if (!tx.isNotKilled())
             throw new LockingTransaction.StoppedEx();
+        if (tx.countKarma)
+            karma++;
+        if (tx.readOnly)
+            throw new IllegalStateException("Can't commute in read-only transaction");
+        if (tx.inevitable) {
+            // No conflicts to avoid: alter
+            return doSet(ref, fn.applyTo(RT.cons(doGet(ref), args)));
+        }
+        lockDeferred();
         Object val = vals.get(ref);
         if (val == null) {
-            try {
-                ref.lockRead();
-                val = ref.tvals == null ? null : ref.tvals.val;
-            } finally {
-                ref.unlockRead();
-            }
+            Ref.TVal ver = ref.latest();
+            val = ver == null ? null : ver.val;
             vals.put(ref, val);
         }
         ArrayList<CFn> fns = commutes.get(ref);
@@ -262,6 +665,57 @@ public class TransactionalContext {
         return ret;
     }
 
+    // Commute on a sharded ref: like doCommute, but the commute fns are
+    // applied to one of its cells after commit.
+    Object doShardedCommute(ShardedRef ref, IFn fn, ISeq args) {
+        if (!tx.isNotKilled())
+            throw new LockingTransaction.StoppedEx();
+        if (tx.countKarma)
+            karma++;
+        if (tx.readOnly)
+            throw new IllegalStateException("Can't commute in read-only transaction");
+        Object val = vals.get(ref);
+        if (val == null)
+            val = requireBeforeTransaction(ref);
+        ArrayList<CFn> fns = sharded.get(ref);
+        if (fns == null)
+            sharded.put(ref, fns = new ArrayList<CFn>());
+        fns.add(new CFn(fn, args));
+        Object ret = fn.applyTo(RT.cons(val, args));
+        vals.put(ref, ret);
+        return ret;
+    }
+
+    // Compute the deltas of the commutes on sharded refs. Called at commit,
+    // before anything is locked: if a commute fn throws, the transaction
+    // stops and the exception is thrown, as for a failed validation.
+    private void prepareSharded(LockingTransaction tx) {
+        try {
+            for (Ref ref : sharded)
+                shardedDeltas.put(ref, ((ShardedRef) ref).delta(sharded.get(ref)));
+        } catch (RuntimeException | Error e) {
+            tx.stop(LockingTransaction.RETRY);
+            throw e;
+        }
+    }
+
+    // Apply commutes on sharded refs. Called after the point of no return:
+    // only combines the deltas into the cells.
+    private void applySharded() {
+        for (Ref ref : shardedDeltas)
+            ((ShardedRef) ref).add(shardedDeltas.get(ref));
+    }
+
+    // Lock the deferred ref, if any: the transaction does more than a single
+    // set. This detects conflicts on it, like any other set.
+    void lockDeferred() {
+        Ref ref = deferred;
+        if (ref != null) {
+            deferred = null;
+            ref.lockWrite(tx);
+        }
+    }
+
     void releaseIfEnsured(Ref ref) {
         if (ensures.contains(ref)) {
             ensures.remove(ref);
@@ -286,7 +740,7 @@ public class TransactionalContext {
 
     // Merge other context into current one
     void merge(TransactionalContext child) {
-        if (merged.contains(child))
+        if (merged != null && merged.contains(child))
             return;
 
         // vals: add in-transaction-value of refs SET in child to parent; refs
@@ -296,166 +750,455 @@ public class TransactionalContext {
             // Current value in child: always present in child.vals, because r
             // is in child.sets
             Object v_child = child.vals.get(r);
-            // Current value in parent: first look in vals, if it isn't there
-            // look up the value before the transaction
-            Object v_parent = vals.get(r);
-            if (v_parent == null)
-                v_parent = requireBeforeTransaction(r);
-            // Get original value, i.e. value when child was created: first look
-            // in snapshot, if it isn't in snapshot look for value before
-            // transaction
+            // Get original value, i.e. value when child was created, from the
+            // snapshot (or null)
             Object v_original = null;
             if (child.snapshot != null)
                 v_original = child.snapshot.get(r);
-            if (v_original == null)
-                v_original = requireBeforeTransaction(r);
-
-            if (v_parent == v_original) { // no conflict, just take over value
-                vals.put(r, v_child);
-            } else { // conflict
-                if (r.getResolve() != null) {
-                    IFn resolve = r.getResolve();
-                    Object v = resolve.invoke(v_original, v_parent, v_child);
-                    vals.put(r, v);
-                } else {
-                    vals.put(r, v_child);
-                }
-            }
+            vals.put(r, mergeValue(r, vals.get(r), v_original, v_child));
         }
         // sets: add sets of child to parent
         sets.addAll(child.sets);
+        karma += child.karma;
         // commutes: add commutes of child to parent
         // order doesn't matter because they're commutative
-        for (Map.Entry<Ref, ArrayList<CFn>> c : child.commutes.entrySet()) {
-            ArrayList<CFn> fns = commutes.get(c.getKey());
-            if (fns == null) {
-                commutes.put(c.getKey(), fns = new ArrayList<CFn>());
-            }
-            fns.addAll(c.getValue());
-        }
+        appendFns(commutes, child.commutes);
+        appendFns(sharded, child.sharded);
         // ensures: add ensures of child to parent
         ensures.addAll(child.ensures);
+        optimisticEnsures.addAll(child.optimisticEnsures);
         // actions: add actions of child to parent
         // They are added AFTER the ones of the current future, in the order
         // they were in in the child
         actions.addAll(child.actions);
         // merged: add futures merged into child to futures merged into parent
-        merged.addAll(child.merged);
+        if (merged == null)
+            merged = new HashSet<TransactionalContext>();
+        if (child.merged != null)
+            merged.addAll(child.merged);
 
         merged.add(child);
     }
 
-    // Merge all children.
-    void mergeChildren() throws ExecutionException, InterruptedException {
+    // Value of r after merging a child that set it to v_child: v_parent is
+    // its value here, v_original its value when the child was created
+    // (either is null if it's the value before the transaction, which is
+    // then looked up, through the read cache). Without a resolve fn, the
+    // child's value always wins, so that isn't needed.
+    private Object mergeValue(Ref r, Object v_parent, Object v_original,
+                              Object v_child) {
+        IFn resolve = r.getResolve();
+        if (resolve == null)
+            return v_child;
+        if (v_parent == null || v_original == null) {
+            Object before = requireBeforeTransaction(r);
+            if (v_parent == null)
+                v_parent = before;
+            if (v_original == null)
+                v_original = before;
+        }
+        if (v_parent == v_original) // no conflict, just take over value
+            return v_child;
+        // conflict
+        return resolve.invoke(v_original, v_parent, v_child);
+    }
+
+    // Merge nested transaction into this context, after it finished.
+    void mergeNested(TransactionalContext inner) {
+        merge(inner);
+        readCache.putAll(inner.readCache);
+        spawned.addAll(inner.spawned);
+        if (inner.nextBehavior != null)
+            nextBehavior = inner.nextBehavior;
+    }
+
+    // Undo nested transaction, to retry it or because it threw: wait for
+    // its futures, and release its ensures. Refs it set stay marked as
+    // written by this transaction until it finishes.
+    void abandonNested() {
         for (Future future : children) {
-            future.get();
+            try {
+                future.get();
+            } catch (Throwable t) {
+                // ignore, we're undoing it anyway
+            }
+        }
+        for (Ref r : ensures) {
+            r.unlockRead();
+        }
+        ensures.clear();
+    }
+
+    // Move the read point of the transaction forward, so that a nested
+    // transaction in this context can retry without running into the same
+    // conflict. That is only possible if everything read so far, outside
+    // the nested transaction, is still the same at the new read point, if
+    // no futures of the transaction are still running (they might read at
+    // the old one), and if it read no sharded ref (its versions have no
+    // point, so a change can't be seen). Returns false if not possible.
+    boolean extendReadPoint() {
+        for (TransactionalContext c = this; c != null; c = c.outer) {
+            if (c.snapshot != null && !c.nested)
+                return false; // context of a future
+            for (Future<?> future : c.children) {
+                if (!future.isDone())
+                    return false;
+            }
+        }
+        long point = LockingTransaction.clock.readPoint();
+        for (TransactionalContext c = this; c != null; c = c.outer) {
+            for (Map.Entry<Ref, Ref.TVal> e : c.readCache.entrySet()) {
+                if (e.getKey() instanceof ShardedRef)
+                    return false;
+                Ref.TVal ver = e.getKey().versionAt(point);
+                if (ver == null || ver.point != e.getValue().point)
+                    return false;
+            }
+            for (Ref ref : c.optimisticEnsures) {
+                Ref.TVal ver = ref.versionAt(point);
+                if (ver == null || ver.point > tx.readPoint)
+                    return false;
+            }
+        }
+        tx.readPoint = point;
+        for (TransactionalContext c = this; c != null; c = c.outer)
+            c.readPoint = point;
+        return true;
+    }
+
+    // Merge all children, in the order they finish. (They weren't merged in
+    // any particular order before: this only picks the order.) While none
+    // has finished, this thread runs one that hasn't started yet itself.
+    void mergeChildren() throws ExecutionException, InterruptedException {
+        if (children.isEmpty())
+            return;
+        Set<AFuture> left = new HashSet<AFuture>(children.size());
+        for (Future<?> f : children)
+            left.add((AFuture) f);
+        ArrayList<AFuture> unstarted = new ArrayList<AFuture>(left);
+        while (!left.isEmpty()) {
+            AFuture f = completions.poll();
+            while (f == null && !unstarted.isEmpty()) {
+                unstarted.remove(unstarted.size() - 1).runIfUnstarted();
+                f = completions.poll();
+            }
+            if (f == null)
+                f = completions.take();
+            // A child cancelled while running is queued twice
+            if (left.remove(f))
+                f.get();
         }
     }
 
     // Commit
     boolean commit(LockingTransaction tx) {
+        if (!sharded.isEmpty())
+            prepareSharded(tx);
+        if (deferred != null)
+            return commitSingle(tx, deferred);
+        if (sets.isEmpty() && commutes.isEmpty())
+            return commitReadOnly(tx);
+        if (sets.isEmpty() && ensures.isEmpty() &&
+                optimisticEnsures.isEmpty() && commutes.size() == 1) {
+            Ref ref = commutes.iterator().next();
+            RefCombiner combiner = ref.combiner;
+            if (combiner != null)
+                return commitCombined(tx, ref, combiner);
+        }
+        TransactionStats stats = tx.stats;
+        long start = stats != null ? System.nanoTime() : 0;
         boolean done = false;
-        ArrayList<Ref> locked = new ArrayList<Ref>(); // write locks
-        ArrayList<Notify> notify = new ArrayList<Notify>();
+        CommitBuffer buf = CommitBuffer.acquire();
+        Ref[] refs = buf.refs;
+        int n = 0; // refs to write
+        int nlocked = 0; // refs[0..nlocked[ are write-locked
+        int nnotify = 0;
+        Object[] notify = null;
+        boolean posted = false; // notifications handed to PostCommit
+        // Inevitable writer to wait for before retrying (can be null)
+        LockingTransaction.Info waitFor = null;
         try {
             // If no one has killed us before this point, and make sure they
             // can't from now on. If they have: retry, done stays false.
-            if (!tx.info.status.compareAndSet(LockingTransaction.RUNNING,
+            LockingTransaction.Info info = tx.getInfo();
+            if (!info.status.compareAndSet(LockingTransaction.RUNNING,
                     LockingTransaction.COMMITTING)) {
-                throw new LockingTransaction.RetryEx();
+                throw new LockingTransaction.RetryEx(TransactionStats.BARGED);
             }
 
-            // Commutes: write-lock them, re-calculate and put in vals
-            for (Map.Entry<Ref, ArrayList<CFn>> e : commutes.entrySet()) {
-                Ref ref = e.getKey();
+            // Refs to write: sets and commutes, in order of id. All
+            // committers lock in this order, so they can wait for each other
+            // without deadlocks.
+            n = sets.size();
+            for (Ref ref : commutes) {
+                if (!sets.contains(ref))
+                    n++;
+            }
+            refs = buf.refs(n);
+            int k = 0;
+            for (Ref ref : sets)
+                refs[k++] = ref;
+            for (Ref ref : commutes) {
+                // commute and set: no need to re-execute, use latest val
+                if (!sets.contains(ref))
+                    refs[k++] = ref;
+            }
+            Arrays.sort(refs, 0, n);
+
+            // Write-lock them. Commutes: re-calculate and put in vals.
+            for (int i = 0; i < n; i++) {
+                Ref ref = refs[i];
                 if (sets.contains(ref)) {
-                    // commute and set: no need to re-execute, use latest val
+                    if (tx.inevitable) {
+                        // It owns the refs it set (see Ref.own), so no one
+                        // else can have written them: wait as long as it
+                        // takes. Its commutes are sets.
+                        ref.lock.writeLock().lock();
+                    } else {
+                        lockForCommit(ref, tx, TransactionStats.LOCK_TIMEOUT);
+                    }
+                    nlocked++;
                     continue;
                 }
 
                 boolean wasEnsured = ensures.contains(ref);
                 // Can't upgrade readLock, so release it
                 releaseIfEnsured(ref);
-                ref.tryWriteLock();
-                locked.add(ref);
-                if (wasEnsured && ref.tvals != null && ref.tvals.point > tx.readPoint)
+                lockForCommit(ref, tx, TransactionStats.COMMUTE_LOCK_TIMEOUT);
+                nlocked++;
+                if (wasEnsured && ref.tvals != null && ref.tvals.point > tx.readPoint) {
+                    ref.conflict(RefProfiler.READ_RETRY);
                     throw new LockingTransaction.RetryEx();
+                }
 
                 LockingTransaction.Info latest = ref.latestWriter;
-                if (latest != null && latest != tx.info && latest.running()) {
-                    boolean barged = tx.barge(latest);
-                    // Try to barge other, if it didn't work retry this tx
-                    if (!barged)
+                if (latest != null && latest != info && latest.running()) {
+                    boolean barged = ref.barge(tx, latest);
+                    // Try to barge other, if it didn't work retry this tx.
+                    // An inevitable writer is never retried, so retrying
+                    // before it has finished would fail again: wait for it
+                    // once our locks are released.
+                    if (!barged) {
+                        if (latest.inevitable)
+                            waitFor = latest;
                         throw new LockingTransaction.RetryEx();
+                    }
                 }
                 Object val = ref.tvals == null ? null : ref.tvals.val;
-                vals.put(ref, val);
-                for (CFn f : e.getValue()) {
-                    vals.put(ref, f.fn.applyTo(RT.cons(vals.get(ref), f.args)));
+                for (CFn f : commutes.get(ref)) {
+                    val = f.fn.applyTo(RT.cons(val, f.args));
                 }
+                vals.put(ref, val);
                 sets.add(ref);
             }
 
-            // Sets: write-lock them
-            for (Ref ref : sets) {
-                ref.tryWriteLock();
-                locked.add(ref);
-            }
-
             // Validate (if invalid, throws IllegalStateException)
-            for (Ref ref : sets) {
-                ref.validate(ref.getValidator(), vals.get(ref));
+            for (int i = 0; i < n; i++) {
+                refs[i].validate(refs[i].getValidator(), vals.get(refs[i]));
             }
 
             // At this point, all values calced, all refs to be written locked,
             // so commit.
-            long commitPoint = LockingTransaction.lastPoint.incrementAndGet();
-            for (Ref ref : sets) {
+            long commitPoint = LockingTransaction.clock.commitPoint();
+            validateOptimisticEnsures(tx);
+            for (int i = 0; i < n; i++) {
+                Ref ref = refs[i];
                 Object oldval = ref.tvals == null ? null : ref.tvals.val;
                 Object newval = vals.get(ref);
-                int hcount = ref.histCount();
-
-                if (ref.tvals == null) {
-                    ref.tvals = new Ref.TVal(newval, commitPoint);
-                } else if ((ref.faults.get() > 0 && hcount < ref.maxHistory)
-                        || hcount < ref.minHistory) {
-                    ref.tvals = new Ref.TVal(newval, commitPoint, ref.tvals);
-                    ref.faults.set(0);
-                } else {
-                    ref.tvals = ref.tvals.next;
-                    ref.tvals.val = newval;
-                    ref.tvals.point = commitPoint;
-                }
+                ref.commitVal(newval, commitPoint);
                 // Notify refs with watches
                 if (ref.getWatches().count() > 0)
-                    notify.add(new Notify(ref, oldval, newval));
+                    nnotify = buf.addNotify(nnotify, ref, oldval, newval);
             }
 
             // Done
-            tx.info.status.set(LockingTransaction.COMMITTED);
+            info.status.set(LockingTransaction.COMMITTED);
             done = true;
+            applySharded();
+            if (PostCommit.async) {
+                // Hand notifications and agent sends to the post-commit
+                // thread while the refs are still locked, so notifications
+                // of a ref stay in commit order.
+                PostCommit.submit(buf.notify, nnotify, actions);
+                actions.clear();
+                posted = true;
+            }
+            if (stats != null)
+                stats.attemptCommitted(n, System.nanoTime() - start);
         } catch (LockingTransaction.RetryEx ex) {
             // eat this, done will stay false
+            tx.retried(ex.cause);
+        } catch (LockingTransaction.StoppedEx ex) {
+            // eat this, done will stay false
+            tx.retried(TransactionStats.STOPPED);
         } finally {
             // Unlock
-            for (int k = locked.size() - 1; k >= 0; --k) {
-                locked.get(k).unlockWrite();
+            for (int i = nlocked - 1; i >= 0; --i) {
+                refs[i].unlockWrite();
             }
-            locked.clear();
+            // Watches can run transactions on this thread, which reuse the
+            // buffer: copy the notifications out of it.
+            if (done && !posted && nnotify > 0)
+                notify = Arrays.copyOf(buf.notify, nnotify);
+            buf.release(n, nnotify);
             // Clear properties of tx and its futures
             tx.stop(done ? LockingTransaction.COMMITTED : LockingTransaction.RETRY);
+            if (waitFor != null)
+                tx.awaitFinished(waitFor);
             // Send notifications
-            try {
-                if (done) {
-                    for (Notify n : notify) {
-                        n.ref.notifyWatches(n.oldval, n.newval);
-                    }
+            if (notify != null) {
+                for (int i = 0; i < notify.length; i += 3) {
+                    ((Ref) notify[i]).notifyWatches(notify[i + 1], notify[i + 2]);
                 }
-            } finally {
-                notify.clear();
             }
         }
         return done;
     }
 
+    // Write-lock ref at commit. If another committer holds the lock, wait for
+    // it: that can't deadlock, as committers lock in the same order. If it is
+    // only read-locked, another transaction probably ensured it, and would
+    // make us wait until it commits: retry soon instead.
+    private static void lockForCommit(Ref ref, LockingTransaction tx,
+                                      int cause) {
+        if (ref.lock.writeLock().tryLock())
+            return;
+        if (!ref.lock.isWriteLocked() && ref.lock.getReadLockCount() > 0) {
+            // Readers that aren't ensures only hold the lock very briefly
+            try {
+                if (ref.lock.writeLock().tryLock(ENSURE_WAIT_NANOS,
+                        TimeUnit.NANOSECONDS))
+                    return;
+            } catch (InterruptedException e) {
+                // retry
+            }
+            ref.conflict(RefProfiler.LOCK_TIMEOUT);
+            throw new LockingTransaction.RetryEx(cause);
+        }
+        ref.tryWriteLock(tx.lockWaitMillis(), cause);
+    }
+
+    // Commit a transaction whose only write is a commute on a ref with a
+    // combiner: let the combiner commit it (possibly as part of a batch).
+    private boolean commitCombined(LockingTransaction tx, Ref ref,
+                                   RefCombiner combiner) {
+        TransactionStats stats = tx.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+        boolean done = false;
+        try {
+            // If we shared our info, make sure no one can kill us anymore
+            LockingTransaction.Info info = tx.info;
+            if (info == null)
+                throw new LockingTransaction.StoppedEx();
+            if (info != LockingTransaction.UNSHARED &&
+                    !info.status.compareAndSet(LockingTransaction.RUNNING,
+                            LockingTransaction.COMMITTING))
+                throw new LockingTransaction.RetryEx(TransactionStats.BARGED);
+
+            combiner.commit(tx, commutes.get(ref));
+            done = true;
+            applySharded();
+            if (stats != null)
+                stats.attemptCommitted(1, System.nanoTime() - start);
+        } catch (LockingTransaction.RetryEx ex) {
+            // eat this, done will stay false
+            tx.retried(ex.cause);
+        } catch (LockingTransaction.StoppedEx ex) {
+            // eat this, done will stay false
+            tx.retried(TransactionStats.STOPPED);
+        } finally {
+            tx.stop(done ? LockingTransaction.COMMITTED : LockingTransaction.RETRY);
+        }
+        return done;
+    }
+
+    // Commit a transaction whose only write is a set of ref, which wasn't
+    // locked yet (see deferred): lock it only now, check that no one else
+    // wrote it since our read point, and publish the new version. This
+    // doesn't need the commit buffer, and doesn't share the transaction's
+    // info unless it has to barge someone.
+    private boolean commitSingle(LockingTransaction tx, Ref ref) {
+        TransactionStats stats = tx.stats;
+        long start = stats != null ? System.nanoTime() : 0;
+        boolean done = false;
+        boolean locked = false;
+        Object oldval = null;
+        Object newval = vals.get(ref);
+        boolean notify = false;
+        try {
+            // If we shared our info, make sure no one can kill us anymore
+            LockingTransaction.Info info = tx.info;
+            if (info == null)
+                throw new LockingTransaction.StoppedEx();
+            if (info != LockingTransaction.UNSHARED &&
+                    !info.status.compareAndSet(LockingTransaction.RUNNING,
+                            LockingTransaction.COMMITTING))
+                throw new LockingTransaction.RetryEx(TransactionStats.BARGED);
+
+            lockForCommit(ref, tx, TransactionStats.LOCK_TIMEOUT);
+            locked = true;
+            if (ref.tvals != null && ref.tvals.point > tx.readPoint) {
+                ref.conflict(RefProfiler.READ_RETRY);
+                throw new LockingTransaction.RetryEx();
+            }
+            // Someone else is writing it: we conflict with them
+            LockingTransaction.Info latest = ref.latestWriter;
+            if (latest != null && latest.running() && !ref.barge(tx, latest)) {
+                ref.unlockWrite();
+                locked = false;
+                tx.blockAndBail(latest);
+            }
+
+            ref.validate(ref.getValidator(), newval);
+            oldval = ref.tvals == null ? null : ref.tvals.val;
+            ref.commitVal(newval, LockingTransaction.clock.commitPoint());
+            notify = ref.getWatches().count() > 0;
+            done = true;
+            applySharded();
+            if (PostCommit.async) {
+                // While locked, see commit
+                if (notify)
+                    PostCommit.submit(new Object[]{ref, oldval, newval}, 3,
+                            actions);
+                else
+                    PostCommit.submit(null, 0, actions);
+                actions.clear();
+                notify = false;
+            }
+            if (stats != null)
+                stats.attemptCommitted(1, System.nanoTime() - start);
+        } catch (LockingTransaction.RetryEx ex) {
+            // eat this, done will stay false
+            tx.retried(ex.cause);
+        } catch (LockingTransaction.StoppedEx ex) {
+            // eat this, done will stay false
+            tx.retried(TransactionStats.STOPPED);
+        } finally {
+            if (locked)
+                ref.unlockWrite();
+            tx.stop(done ? LockingTransaction.COMMITTED : LockingTransaction.RETRY);
+            if (done && notify)
+                ref.notifyWatches(oldval, newval);
+        }
+        return done;
+    }
+
+    // Commit a transaction that hasn't written any ref (except for commutes
+    // on sharded refs, which don't need locks): its reads were consistent at
+    // its read point, so there is nothing to check or lock, and it doesn't
+    // need a commit point. No one can have killed it, as it was never the
+    // latest writer of a ref.
+    private boolean commitReadOnly(LockingTransaction tx) {
+        if (!tx.isNotKilled()) {
+            tx.retried(TransactionStats.STOPPED);
+            tx.stop(LockingTransaction.RETRY);
+            return false;
+        }
+        applySharded();
+        tx.stop(LockingTransaction.COMMITTED);
+        if (tx.stats != null)
+            tx.stats.attemptCommitted(0, 0);
+        return true;
+    }
+
 }
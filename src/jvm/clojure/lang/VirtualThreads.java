@@ -0,0 +1,81 @@
+/**
+ *   Copyright (c). All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Virtual-thread mode (off by default): futures and actor loops each run on
+// their own virtual thread instead of a platform thread of
+// Agent.soloExecutor, so blocked futures and idle actors don't hold on to
+// platform threads. Needs Java 21 or later; the executor is looked up
+// reflectively so this still compiles and runs on older JVMs.
+// The executors of AFuture and Actor can also be set separately.
+public class VirtualThreads {
+
+    private static ExecutorService executor = null;
+
+    // Can this JVM create virtual threads?
+    public static boolean isSupported() {
+        return newExecutorMethod() != null;
+    }
+
+    public static boolean isEnabled() {
+        ExecutorService e = virtualExecutor();
+        return e != null && AFuture.getExecutor() == e
+                && Actor.getExecutor() == e;
+    }
+
+    // Run futures and actors forked or started from now on on virtual
+    // threads (or again on Agent.soloExecutor). Futures and actors that are
+    // already running stay on their thread.
+    public static void setEnabled(boolean enabled) {
+        if (enabled) {
+            ExecutorService e = executor();
+            AFuture.setExecutor(e);
+            Actor.setExecutor(e);
+        } else {
+            AFuture.setExecutor(null);
+            Actor.setExecutor(null);
+        }
+    }
+
+    // Executor that starts a virtual thread per task. Throws
+    // UnsupportedOperationException on JVMs without virtual threads.
+    public static synchronized ExecutorService executor() {
+        if (executor == null) {
+            Method m = newExecutorMethod();
+            if (m == null)
+                throw new UnsupportedOperationException(
+                        "Virtual threads need Java 21 or later");
+            try {
+                executor = (ExecutorService) m.invoke(null);
+            } catch (Exception e) {
+                throw Util.sneakyThrow(e);
+            }
+        }
+        return executor;
+    }
+
+    private static synchronized ExecutorService virtualExecutor() {
+        return executor;
+    }
+
+    private static Method newExecutorMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
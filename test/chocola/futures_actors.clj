@@ -31,3 +31,34 @@
       (send sender i))
     @done?
     (is (= @received-is (range n-msgs)))))
+
+(deftest virtual-threads
+  (if-not (clojure.lang.VirtualThreads/isSupported)
+    (is (thrown? UnsupportedOperationException
+          (clojure.lang.VirtualThreads/setEnabled true)))
+    (try
+      (clojure.lang.VirtualThreads/setEnabled true)
+      (is (clojure.lang.VirtualThreads/isEnabled))
+      ; Many idle actors and blocked futures, each on a virtual thread
+      (let [n       2000
+            gate    (promise)
+            r       (ref 0)
+            counter (atom 0)
+            done?   (promise)
+            beh     (behavior []
+                      [_]
+                      (when (= n (swap! counter inc))
+                        (deliver done? true)))
+            actors  (doall (repeatedly n #(spawn beh)))
+            futs    (doall (repeatedly n #(future @gate 1)))]
+        (deliver gate true)
+        (is (= n (reduce + (map deref futs))))
+        (doseq [a actors]
+          (send a :go))
+        (is (deref done? 10000 false))
+        (dosync
+          (let [fs (doall (for [_ (range 100)] (future (commute r inc))))]
+            (doseq [f fs] @f)))
+        (is (= 100 @r)))
+      (finally
+        (clojure.lang.VirtualThreads/setEnabled false)))))
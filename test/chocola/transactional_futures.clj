@@ -334,3 +334,46 @@
           (deref h)
           (is (= 31 (deref r1)))))
       (is (= 31 (deref r1))))))
+
+; === FORK/JOIN EXECUTOR ===
+
+(defn- fib-futures [r n]
+  (commute r inc)
+  (if (< n 2)
+    n
+    (let [a (future (fib-futures r (- n 1)))
+          b (fib-futures r (- n 2))]
+      (+ @a b))))
+
+(deftest fork-join-executor
+  ; With a ForkJoinPool, futures that wait for their children run them
+  ; instead of blocking: 2 threads suffice for many nested futures.
+  (let [pool (java.util.concurrent.ForkJoinPool. 2)]
+    (try
+      (clojure.lang.AFuture/setExecutor pool)
+      (let [r (ref 0)]
+        (is (= 610 (dosync (fib-futures r 15))))
+        (is (= 1973 @r)))
+      (is (<= (.getPoolSize pool) 4))
+      (finally
+        (clojure.lang.AFuture/setExecutor nil)
+        (.shutdown pool)))))
+
+; === LAZY FORKING ===
+
+(deftest lazy-forking
+  (try
+    (clojure.lang.AFuture/setLazy true)
+    ; Deferred futures are run by whoever derefs them first...
+    (let [r (ref 0)]
+      (is (= 610 (dosync (fib-futures r 15))))
+      (is (= 1973 @r)))
+    ; ...or submitted when their parent finishes.
+    (let [n    50
+          done (vec (repeatedly n promise))]
+      @(future
+         (dotimes [i n]
+           (future (deliver (nth done i) i))))
+      (is (= (range n) (map #(deref % 5000 nil) done))))
+    (finally
+      (clojure.lang.AFuture/setLazy false))))
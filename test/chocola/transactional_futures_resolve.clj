@@ -150,3 +150,60 @@
           ; (+ 201 (- 101 1)) = (+ 301)
           (is (= 301 @r1))))
       (is (= 301 @r1)))))
+
+; === MANY FUTURES ===
+
+(deftest many-futures
+  ; Many futures, merged when the transaction ends: every increment is
+  ; kept, by resolve or by commute.
+  (let [n       300
+        total   (ref 0 :resolve summing)
+        counter (ref 0)
+        refs    (vec (repeatedly n #(ref 0)))
+        sent    (agent 0)]
+    (dosync
+      (dotimes [i n]
+        (future
+          (alter total + i)
+          (commute counter inc)
+          (ref-set (nth refs i) i)
+          (send sent inc))))
+    (await sent)
+    (is (= (reduce + (range n)) @total))
+    (is (= n @counter))
+    (is (= (range n) (map deref refs)))
+    (is (= n @sent))))
+
+(deftest unjoined-futures-merge-in-completion-order
+  ; Without a resolve fn, the future merged last wins: the one that finished
+  ; last, not the one forked last.
+  (let [r (ref 0)]
+    (dotimes [_i 5]
+      (dosync
+        (let [first (promise)]
+          (future
+            @first
+            (Thread/sleep 20)
+            (ref-set r :late))
+          (future
+            (ref-set r :early)
+            (deliver first true))))
+      (is (= :late @r)))))
+
+(def ^:dynamic *offset* 1)
+
+(deftest many-futures-many-resolved-refs
+  ; Enough refs with a resolve fn to fold them in parallel. Resolve fns see
+  ; the transaction and the bindings of the merging thread.
+  (let [n       100
+        base    (ref 0)
+        summing (fn [o p c] (+ p (- c o) (- @base 10) *offset*))
+        refs    (vec (repeatedly 40 #(ref 0 :resolve summing)))]
+    (binding [*offset* 0]
+      (dosync
+        (ref-set base 10)
+        (dotimes [i n]
+          (future
+            (doseq [r refs]
+              (alter r + i))))))
+    (is (every? #(= (reduce + (range n)) %) (map deref refs)))))
@@ -1,7 +1,8 @@
 (ns chocola.transactions
   (:require [clojure.test :refer :all]
+            [clojure.set]
             [chocola.core])
-  (:import [java.util.concurrent Executors]))
+  (:import [java.util.concurrent CountDownLatch Executors]))
 
 ; Based on tests by Tom Van Cutsem
 ; https://github.com/tvcutsem/stm-in-clojure
@@ -78,3 +79,229 @@
       (for [r refs]
         (is (= (* niters (reduce + (range (inc nthreads))))
               (deref r)))))))
+
+;; === Sharded refs ===
+
+(deftest test-sharded-commutes
+  (let [nthreads 10
+        niters   5000
+        counter  (sharded-ref 0 + 0)
+        total    (ref 0)
+        pool     (Executors/newFixedThreadPool nthreads)
+        tasks    (map (fn [t]
+                        (fn []
+                          (dotimes [n niters]
+                            (dosync
+                              (commute counter + 1)
+                              (when (zero? (mod n 10))
+                                (commute total + 1))))))
+                   (range nthreads))]
+    (doseq [future (.invokeAll pool tasks)]
+      (.get future))
+    (.shutdown pool)
+    (is (= (* nthreads niters) @counter))
+    (is (= (* nthreads (/ niters 10)) @total))))
+
+(deftest test-sharded-ref
+  (let [s (sharded-ref #{} clojure.set/union #{})]
+    (is (= #{1 2} (dosync (commute s conj 1) (commute s conj 2))))
+    (is (= #{1 2 3} (dosync @(future (commute s conj 3)))))
+    (is (= #{1 2 3} @s))
+    (is (thrown? IllegalStateException (dosync (ref-set s #{}))))
+    (is (thrown? IllegalStateException (dosync (alter s conj 4))))
+    (is (thrown? IllegalStateException (dosync (ensure s))))
+    (is (thrown? IllegalStateException (set-validator! s set?)))
+    (is (thrown? IllegalStateException (add-watch s :k (fn [& _]))))
+    (is (= #{1 2 3} @s))))
+
+(deftest test-sharded-commute-throws
+  ; A commute fn that throws at commit aborts the whole transaction
+  (let [counter (sharded-ref 0 + 0)
+        r       (ref 0)
+        calls   (atom 0)
+        boom    (fn [v n]
+                  ; fine in the transaction, throws at commit
+                  (if (< 1 (swap! calls inc))
+                    (throw (ArithmeticException. "boom"))
+                    (+ v n)))]
+    (is (thrown? ArithmeticException
+          (dosync
+            (alter r inc)
+            (commute counter boom 1))))
+    (is (= 0 @r))
+    (is (= 0 @counter))
+    (dosync (alter r inc) (commute counter + 2))
+    (is (= [1 2] [@r @counter]))))
+
+;; === Combining refs ===
+
+(deftest test-combining-commutes
+  (let [nthreads 10
+        niters   2000
+        counter  (ref 0 :combine true)
+        other    (ref 0)
+        pool     (Executors/newFixedThreadPool nthreads)
+        tasks    (map (fn [t]
+                        (fn []
+                          (dotimes [n niters]
+                            (if (zero? (mod n 10))
+                              ; not combined: also writes another ref
+                              (dosync
+                                (commute counter + 1)
+                                (alter other inc))
+                              (dosync
+                                (commute counter + 1))))))
+                   (range nthreads))]
+    (doseq [future (.invokeAll pool tasks)]
+      (.get future))
+    (.shutdown pool)
+    (is (= (* nthreads niters) @counter))
+    (is (= (* nthreads (/ niters 10)) @other))))
+
+(deftest test-combining-errors
+  (let [r (ref 0 :combine true :validator #(< % 3))]
+    (dosync (commute r inc))
+    (dosync (commute r inc))
+    (is (thrown? IllegalStateException (dosync (commute r inc))))
+    (is (= 2 @r))))
+
+(deftest test-combining-errors-in-batch
+  ; b and c commute on 0, then commit while a's fn holds the lock to combine
+  ; a, so they're combined after it, in the same batch. b's fn is fine on 0
+  ; but throws on the 1 the combiner gives it. Only b fails.
+  (let [r         (ref 0 :combine true)
+        ready     (CountDownLatch. 2)
+        combining (CountDownLatch. 1)
+        calls     (atom 0)
+        slow      (fn [v]
+                    (when (< 1 (swap! calls inc)) ; at commit
+                      (.countDown combining)
+                      (Thread/sleep 50))
+                    (inc v))
+        only-zero (fn [v]
+                    (if (zero? v)
+                      (inc v)
+                      (throw (ArithmeticException. "not zero"))))
+        commit-after-a (fn [f & args]
+                         (dosync
+                           (apply commute r f args)
+                           (.countDown ready)
+                           (.await combining)))
+        b         (future-call #(try
+                                  (commit-after-a only-zero)
+                                  (catch ArithmeticException e e)))
+        c         (future-call #(commit-after-a + 10))]
+    (.await ready)
+    (is (= 1 (dosync (commute r slow))))
+    (is (instance? ArithmeticException @b))
+    @c
+    (is (= 11 @r))))
+
+;; === Commit ===
+
+(deftest test-overlapping-write-sets
+  ; Transactions write the same refs in different orders.
+  (let [refs     (vec (map ref (replicate 50 0)))
+        nthreads 4
+        niters   200
+        pool     (Executors/newFixedThreadPool nthreads)
+        tasks    (map (fn [t]
+                        (fn []
+                          (dotimes [n niters]
+                            (dosync
+                              (doseq [r (if (even? t) refs (rseq refs))]
+                                (alter r inc))))))
+                   (range nthreads))]
+    (doseq [future (.invokeAll pool tasks)]
+      (.get future))
+    (.shutdown pool)
+    (is (every? #(= (* nthreads niters) @%) refs))))
+
+(deftest test-watches
+  (let [a   (ref 0)
+        b   (ref 0)
+        log (ref [])]
+    (add-watch a :log (fn [_ _ old new] (dosync (alter log conj [:a old new]))))
+    (add-watch b :log (fn [_ _ old new] (dosync (alter log conj [:b old new]))))
+    (dosync (alter a inc) (alter b + 2))
+    (dosync (commute a inc))
+    (is (= #{[:a 0 1] [:b 0 2] [:a 1 2]} (set @log)))))
+
+(deftest test-single-set
+  ; Transactions that only set one ref, mixed with ones that write more.
+  (let [a        (ref 0 :validator #(< % 1000) :min-history 2)
+        b        (ref 0)
+        log      (atom [])
+        nthreads 4
+        niters   100
+        pool     (Executors/newFixedThreadPool nthreads)
+        tasks    (map (fn [t]
+                        (fn []
+                          (dotimes [n niters]
+                            (if (even? t)
+                              (dosync (alter a inc))
+                              (dosync (alter a inc) (alter b inc))))))
+                   (range nthreads))]
+    (add-watch a :log (fn [_ _ old new] (swap! log conj [old new])))
+    (doseq [future (.invokeAll pool tasks)]
+      (.get future))
+    (.shutdown pool)
+    (is (= (* nthreads niters) @a))
+    (is (= (* (/ nthreads 2) niters) @b))
+    (is (= (for [i (range (* nthreads niters))] [i (inc i)]) (sort @log)))
+    (is (<= 2 (ref-history-count a)))
+    (is (thrown? IllegalStateException (dosync (ref-set a 1000))))
+    (is (= (* nthreads niters) @a))))
+
+;; === Nested transactions ===
+
+(defn- nested-conflict
+  "Outer transaction alters a (after calling read on b), nested one alters b,
+  and another thread commits b in between the first time. Returns [a b
+  outer-attempts inner-attempts]."
+  [read]
+  (let [a     (ref 0)
+        b     (ref 0)
+        outer (atom 0)
+        inner (atom 0)
+        go    (promise)
+        done  (promise)
+        other (future @go (dosync (alter b inc)) (deliver done true))]
+    (dosync
+      (swap! outer inc)
+      (read b)
+      (alter a inc)
+      (dosync
+        (when (= 1 (swap! inner inc))
+          (deliver go true)
+          @done)
+        (alter b inc)))
+    @other
+    [@a @b @outer @inner]))
+
+(deftest test-nested-retries-alone
+  (is (= [1 2 1 2] (nested-conflict (fn [_b] nil)))))
+
+(deftest test-nested-conflict-in-outer
+  ; The outer transaction read b before the other thread wrote it, so it has
+  ; to retry too.
+  (is (= [1 2 2 2] (nested-conflict deref))))
+
+(deftest test-nested-after-sharded-read
+  ; The outer transaction read a sharded ref, which can't tell whether it
+  ; changed since, so it has to retry too.
+  (let [s (sharded-ref 0 + 0)]
+    (is (= [1 2 2 2] (nested-conflict (fn [_b] @s))))))
+
+(deftest test-nested-exception-undone
+  (let [a (ref 0)
+        b (ref 0)]
+    (dosync
+      (alter a inc)
+      (try
+        (dosync
+          (alter b inc)
+          (throw (Exception. "undo")))
+        (catch Exception _e nil))
+      (is (= 0 @b)))
+    (is (= [1 0] [@a @b]))))
@@ -1,7 +1,7 @@
 (ns chocola.transactions-long
   (:require [clojure.test :refer :all]
             [chocola.core])
-  (:import [java.util.concurrent Executors]))
+  (:import [java.util.concurrent CountDownLatch Executors]))
 
 ; This contains long-running tests, i.e. tests thay you may want to include if
 ; you want testing to finish quickly.
@@ -197,3 +197,67 @@
     (assert (every? (fn [r] (= r 550000)) (:result res)))
     (println "num retries using commute: " (:retries res)" (expect 0)")
     (is (= (:retries res) 0))))
+
+;; = CLOCKS =
+
+; Compare the transaction clocks (see clojure.lang.TransactionClock) on a
+; read-heavy workload, in which every transaction reads all refs and only a
+; few write, and on the contention test above.
+(defn read-heavy [nitems nthreads niters]
+  (let [refs  (vec (map ref (replicate nitems 0)))
+        pool  (Executors/newFixedThreadPool nthreads)
+        tasks (map (fn [t]
+                     (fn []
+                       (dotimes [n niters]
+                         (dosync
+                           (let [s (reduce + (map deref refs))]
+                             (when (zero? (mod n 100))
+                               (alter (refs t) inc))
+                             s)))))
+                   (range nthreads))]
+    (doseq [future (.invokeAll pool tasks)]
+      (.get future))
+    (.shutdown pool)
+    (map deref refs)))
+
+(deftest clock-benchmark
+  (doseq [clock [clojure.lang.TransactionClock/GLOBAL
+                 clojure.lang.TransactionClock/SHARED]]
+    (try
+      (clojure.lang.LockingTransaction/setClock clock)
+      (println "clock:" (str clock))
+      (let [res (time (read-heavy 10 10 20000))]
+        (is (every? (fn [r] (= r 200)) res)))
+      (let [res (time (test-contention 10 10 10000))]
+        (is (every? (fn [r] (= r 550000)) res)))
+      (finally
+        (clojure.lang.LockingTransaction/setClock
+          clojure.lang.TransactionClock/GLOBAL)))))
+
+;; = MERGING FUTURES =
+
+; A transaction forks nfutures futures that each add their number to every
+; ref in refs, whose resolve fn sums the changes of both sides. It waits
+; until they have finished, so that the time after that is spent merging
+; them when the transaction ends: nfutures writes per ref.
+(defn merge-futures [nrefs nfutures]
+  (let [refs    (vec (for [_i (range nrefs)]
+                       (ref 0 :resolve (fn [o p c] (+ p (- c o))))))
+        merging (atom 0)]
+    (dosync
+      (let [finished (CountDownLatch. nfutures)]
+        (dotimes [i nfutures]
+          (future
+            (try
+              (doseq [r refs]
+                (alter r + i))
+              (finally
+                (.countDown finished)))))
+        (.await finished)
+        (reset! merging (System/nanoTime))))
+    (println "merged in" (/ (- (System/nanoTime) @merging) 1e6) "ms")
+    (map deref refs)))
+
+(deftest merge-benchmark
+  (let [res (time (merge-futures 100 1000))]
+    (is (every? (fn [n] (= n (reduce + (range 1000)))) res))))
@@ -88,3 +88,114 @@
     (is (= @r (* n-threads n-iters)))
     (await ag)
     (is (= @ag (* n-threads n-iters)))))
+
+; === Adaptive history ===
+
+(defn- read-behind
+  "Read r in a transaction whose read point is n commits of r behind, so that
+  it faults until the history of r keeps n versions. Returns the attempts."
+  [r n]
+  (let [other    (ref 0)
+        attempts (atom 0)]
+    (dosync
+      (swap! attempts inc)
+      @other
+      (doto (Thread. #(dotimes [_i n] (dosync (alter r inc))))
+        (.start)
+        (.join))
+      @r)
+    @attempts))
+
+(deftest adaptive-history-grows
+  ; A slow reader faults until the history of r is deep enough.
+  (let [r (ref 0 :adaptive-history true :max-history 40)]
+    (is (= 0 (ref-history-count r)))
+    (is (< 1 (read-behind r 5)))
+    (is (<= 5 (ref-history-count r)))
+    (is (.isAdaptiveHistory r))))
+
+(deftest adaptive-history-shrinks
+  ; Once readers stop faulting, the history shrinks back to :min-history.
+  (let [r (ref 0 :adaptive-history true :min-history 2 :max-history 40)]
+    (read-behind r 10)
+    (is (<= 10 (ref-history-count r)))
+    (dotimes [i 500]
+      (dosync (alter r inc)))
+    (is (= 2 (ref-history-count r)))
+    (.setAdaptiveHistory r false)
+    (is (= 2 (ref-history-count r)))))
+
+(deftest adaptive-history-consistent
+  ; Writers keep a + b at 0, readers should never see anything else.
+  (let [a       (ref 0 :adaptive-history true)
+        b       (ref 0 :adaptive-history true)
+        n-iters 1000
+        pool    (Executors/newFixedThreadPool 4)
+        writer  (fn []
+                  (dotimes [i n-iters]
+                    (dosync
+                      (alter a inc)
+                      (alter b dec))))
+        reader  (fn []
+                  (every? true?
+                    (doall
+                      (for [i (range n-iters)]
+                        (dosync
+                          (let [x @a]
+                            (Thread/yield)
+                            (= 0 (+ x @b))))))))
+        results (.invokeAll pool [writer writer reader reader])]
+    (doseq [r (drop 2 results)]
+      (is (true? (.get r))))
+    (.shutdown pool)
+    (is (= (* 2 n-iters) @a))))
+
+; === Asynchronous post-commit ===
+
+(defn with-async-post-commit [f]
+  (clojure.lang.PostCommit/setAsync true)
+  (try
+    (f)
+    (finally
+      (clojure.lang.PostCommit/setAsync false))))
+
+(deftest async-post-commit-doesnt-wait-for-watches
+  (with-async-post-commit
+    (fn []
+      (let [r       (ref 0)
+            ag      (agent 0)
+            started (promise)
+            release (promise)]
+        (add-watch r :slow (fn [_k _r _old _new]
+                             (deliver started true)
+                             @release))
+        (dosync
+          (send ag inc)
+          (alter r inc))
+        ; The commit returned while the watch is still blocked
+        (is (deref started 1000 false))
+        (deliver release true)
+        (clojure.lang.PostCommit/await)
+        (await ag)
+        (is (= 1 @ag))))))
+
+(deftest async-post-commit-keeps-order
+  ; Notifications of a ref must come in commit order: each one's old value is
+  ; the previous one's new value.
+  (with-async-post-commit
+    (fn []
+      (let [r         (ref 0)
+            seen      (atom [])
+            n-threads 4
+            n-iters   200
+            pool      (Executors/newFixedThreadPool n-threads)
+            task      (fn []
+                        (dotimes [_i n-iters]
+                          (dosync (alter r inc))))]
+        (add-watch r :log (fn [_k _r old new] (swap! seen conj [old new])))
+        (doseq [f (.invokeAll pool (repeat n-threads task))]
+          (.get f))
+        (.shutdown pool)
+        (clojure.lang.PostCommit/await)
+        (is (= (for [i (range (* n-threads n-iters))] [i (inc i)])
+               @seen))))))
@@ -0,0 +1,365 @@
+(ns chocola.transactions-options
+  (:require [clojure.test :refer :all]
+            [chocola.core])
+  (:import [java.util.concurrent CountDownLatch Executors TimeUnit]))
+
+; Transactions with options, passed to sync.
+
+; === READ-ONLY ===
+
+(deftest read-only
+  (let [a (ref 1)
+        b (ref 2)]
+    (is (= 3 (sync {:read-only true} (+ @a @b))))
+    (is (= 3 (sync {:read-only true} (ensure a) (+ @a @b))))
+    (is (thrown? IllegalStateException
+          (sync {:read-only true} (alter a inc))))
+    (is (thrown? IllegalStateException
+          (sync {:read-only true} (commute a inc))))
+    (is (= 1 @a))))
+
+(deftest read-only-future
+  (let [a (ref 1)]
+    (is (= 2 (sync {:read-only true} @(future (inc @a)))))
+    (is (thrown? java.util.concurrent.ExecutionException
+          (sync {:read-only true} @(future (ref-set a 5)))))
+    (is (= 1 @a))))
+
+(deftest read-only-consistent
+  ; Writers keep the sum of a and b at 0, readers should never see anything
+  ; else.
+  (let [a       (ref 0)
+        b       (ref 0)
+        n-iters 2000
+        pool    (Executors/newFixedThreadPool 4)
+        writer  (fn []
+                  (dotimes [i n-iters]
+                    (dosync
+                      (alter a inc)
+                      (alter b dec))))
+        reader  (fn []
+                  (every? true?
+                    (doall
+                      (for [i (range n-iters)]
+                        (sync {:read-only true} (= 0 (+ @a @b)))))))
+        results (.invokeAll pool [writer writer reader reader])]
+    (doseq [r (drop 2 results)]
+      (is (true? (.get r))))
+    (.shutdown pool)
+    (is (= (* 2 n-iters) @a))))
+
+; === CONTENTION MANAGER ===
+
+(defn- contention [cm nitems nthreads niters]
+  (let [refs  (map ref (replicate nitems 0))
+        pool  (Executors/newFixedThreadPool nthreads)
+        tasks (map (fn [t]
+                     (fn []
+                       (dotimes [n niters]
+                         (sync {:contention-manager cm}
+                           (doseq [r refs]
+                             (alter r + 1 t))))))
+                   (range nthreads))]
+    (doseq [future (.invokeAll pool tasks)]
+      (.get future))
+    (.shutdown pool)
+    (map deref refs)))
+
+(deftest contention-managers
+  (doseq [cm [(clojure.lang.ContentionManager$Timestamp.)
+              (clojure.lang.ContentionManager$Timestamp. 0 1 1)
+              (clojure.lang.ContentionManager$Backoff.)
+              (clojure.lang.ContentionManager$Karma.)
+              (clojure.lang.ContentionManager$Karma. 0 0 100 100)]]
+    ; each ref should be incremented by (* 500 (+ 1 2 3 4 5)) in total
+    (is (every? #(= % 7500) (contention cm 5 5 500)))))
+
+; With the shared clock, two transactions can start at the same point. One
+; of them must still count as older, and barge the other: the one on the
+; thread with the lowest id.
+(deftest shared-clock-age-priority
+  (try
+    (clojure.lang.LockingTransaction/setClock
+      clojure.lang.TransactionClock/SHARED)
+    (let [cm       (clojure.lang.ContentionManager$Timestamp. 0 Long/MAX_VALUE 100)
+          a        (ref 0)
+          b        (ref 0)
+          written  (CountDownLatch. 2)
+          attempts {:older (atom 0) :younger (atom 0)}
+          run      (fn [role first second]
+                     (sync {:contention-manager cm}
+                       ; two writes, so their locks aren't deferred
+                       (alter (ref 0) inc)
+                       (alter first inc)
+                       (when (= 1 (swap! (attempts role) inc))
+                         (.countDown written)
+                         (.await written 1 TimeUnit/SECONDS)
+                         ; the older one gets to its second write first
+                         (when (= role :younger)
+                           (Thread/sleep 200)))
+                       (alter second inc)))
+          roles    (promise)
+          body     (fn []
+                     (if (= :older (@roles (Thread/currentThread)))
+                       (run :older a b)
+                       (run :younger b a)))
+          t1       (Thread. ^Runnable body)
+          t2       (Thread. ^Runnable body)]
+      (deliver roles (if (< (.getId t1) (.getId t2))
+                       {t1 :older t2 :younger}
+                       {t1 :younger t2 :older}))
+      (.start t1)
+      (.start t2)
+      (.join t1 5000)
+      (.join t2 5000)
+      (is (= 1 @(:older attempts)))
+      (is (< 1 @(:younger attempts)))
+      (is (= [2 2] [@a @b])))
+    (finally
+      (clojure.lang.LockingTransaction/setClock
+        clojure.lang.TransactionClock/GLOBAL))))
+
+(deftest default-contention-manager
+  (let [original (clojure.lang.LockingTransaction/getContentionManager)]
+    (try
+      (clojure.lang.LockingTransaction/setContentionManager
+        (clojure.lang.ContentionManager$Backoff.))
+      (let [r (ref 0)]
+        (dosync (alter r inc))
+        (is (= 1 @r)))
+      (finally
+        (clojure.lang.LockingTransaction/setContentionManager original)))))
+
+; === OPTIMISTIC ENSURE ===
+
+(defn- write-skew? []
+  ; Constraint: @cats + @dogs <= 3. Without ensure, both transactions can
+  ; commit (see write-skew-experiment in transactions-long).
+  (let [cats  (ref 1)
+        dogs  (ref 1)
+        start (java.util.concurrent.CountDownLatch. 1)
+        adopt (fn [mine other]
+                (future
+                  (.await start)
+                  (sync {:optimistic-ensure true}
+                    (ensure other)
+                    (when (< (+ @cats @dogs) 3)
+                      (Thread/yield)
+                      (alter mine inc)))))
+        fs    [(adopt cats dogs) (adopt dogs cats)]]
+    (.countDown start)
+    (run! deref fs)
+    (> (+ @cats @dogs) 3)))
+
+(deftest optimistic-ensure-write-skew
+  (is (not-any? true? (repeatedly 1000 write-skew?))))
+
+(deftest optimistic-ensure-doesnt-block
+  ; A writer of an ensured ref doesn't wait for the ensuring transaction.
+  (let [r        (ref 0)
+        other    (ref 0)
+        ensured  (promise)
+        attempts (atom 0)
+        t        (future
+                   (sync {:optimistic-ensure true}
+                     (swap! attempts inc)
+                     (ensure r)
+                     (deliver ensured true)
+                     (Thread/sleep 200)
+                     (ref-set other @r)))]
+    @ensured
+    (let [start (System/nanoTime)]
+      (dosync (alter r inc))
+      (is (< (/ (- (System/nanoTime) start) 1e6) 150)))
+    (is (= 1 @t))
+    (is (= 2 @attempts))))
+
+; === EARLY VALIDATION ===
+
+(defn- sleep-until-interrupted
+  ; In a future: deliver started, and block until interrupted.
+  [started interrupted]
+  @(future
+     (try
+       (deliver started true)
+       (Thread/sleep 10000)
+       (catch InterruptedException _e
+         (deliver interrupted true)))))
+
+(deftest early-validation-kills-optimistic-ensure
+  ; Writing r kills the transaction that optimistically ensured it, and
+  ; cancels its future, instead of waiting for it to fail at commit.
+  (let [r           (ref 0)
+        s           (ref 0)
+        started     (promise)
+        attempts    (atom 0)
+        interrupted (promise)
+        t           (future
+                      (sync {:early-validation true :optimistic-ensure true}
+                        (swap! attempts inc)
+                        (ensure r)
+                        (when (= 1 @attempts)
+                          (sleep-until-interrupted started interrupted))
+                        (ref-set s @r)))]
+    @started
+    (dosync (alter r inc))
+    (is (deref interrupted 5000 false))
+    (is (= 1 @t))
+    (is (= 2 @attempts))
+    (is (= 1 @s))))
+
+(deftest early-validation-kills-deferred-set
+  ; Writing r kills the transaction that set it without locking it yet: it
+  ; stops at its next ref operation instead of at commit.
+  (let [r         (ref 0)
+        s         (ref 0)
+        started   (promise)
+        committed (promise)
+        attempts  (atom 0)
+        reads     (atom 0)
+        t         (future
+                    (sync {:early-validation true}
+                      (swap! attempts inc)
+                      (ref-set r 10)
+                      (when (= 1 @attempts)
+                        (deliver started true)
+                        @committed)
+                      @s
+                      (swap! reads inc)))]
+    @started
+    (dosync (alter r inc))
+    (deliver committed true)
+    (is (= 1 @t))
+    (is (= 2 @attempts))
+    (is (= 10 @r))))
+
+(deftest early-validation-keeps-readers
+  ; A transaction that only read r can still commit after r changes: it
+  ; isn't killed.
+  (let [r         (ref 0)
+        s         (ref 0)
+        started   (promise)
+        committed (promise)
+        attempts  (atom 0)
+        t         (future
+                    (sync {:early-validation true}
+                      (swap! attempts inc)
+                      (let [x @r]
+                        @(future
+                           (deliver started true)
+                           @committed)
+                        (ref-set s (inc x)))))]
+    @started
+    (dosync (alter r inc))
+    (deliver committed true)
+    (is (= 1 @t))
+    (is (= 1 @attempts))
+    (is (= 1 @s))))
+
+(deftest early-validation-keeps-later-readers
+  ; Readers that read the new version aren't killed.
+  (let [r (ref 0)]
+    (dosync (alter r inc))
+    (is (= 1 (sync {:early-validation true} (ref-set r (inc @r)) (dec @r))))
+    (is (= 2 @r))))
+
+; === RETRY LIMIT AND TIMEOUT ===
+
+(defn- conflict!
+  "Commit r in another thread, so that writing it in the current transaction
+  conflicts."
+  [r]
+  (doto (Thread. #(dosync (alter r inc)))
+    (.start)
+    (.join)))
+
+(deftest retry-limit
+  (let [r        (ref 0)
+        attempts (atom 0)
+        e        (try
+                   (sync {:retry-limit 3}
+                     (swap! attempts inc)
+                     (conflict! r)
+                     (alter r inc))
+                   nil
+                   (catch clojure.lang.LockingTransaction$TransactionFailedException e
+                     e))]
+    (is (some? e))
+    (is (= 3 @attempts))
+    (is (= "Transaction failed after reaching retry limit" (.getMessage e)))
+    (is (= 3 (:attempts (.toMap (.getStats e)))))
+    (is (= 3 @r))))
+
+(deftest timeout
+  (let [r           (ref 0)
+        interrupted (promise)
+        start       (System/nanoTime)
+        e           (try
+                      (sync {:timeout-ms 100}
+                        (future
+                          (try
+                            (Thread/sleep 10000)
+                            (catch InterruptedException _e
+                              (deliver interrupted true))))
+                        (Thread/sleep 20)
+                        (conflict! r)
+                        (alter r inc))
+                      nil
+                      (catch clojure.lang.LockingTransaction$TransactionFailedException e
+                        e))]
+    (is (some? e))
+    (is (< (/ (- (System/nanoTime) start) 1e6) 1000))
+    (is (.startsWith (.getMessage e) "Transaction timed out"))
+    (is (deref interrupted 1000 false))))
+
+; === INEVITABLE ===
+
+(deftest inevitable-io
+  (let [r (ref 0)]
+    (is (thrown? IllegalStateException (dosync (io! (alter r inc)))))
+    (is (= 1 (sync {:inevitable true} (io! (alter r inc)))))
+    (is (= 1 @r))))
+
+(deftest inevitable-runs-once
+  ; Under contention, the inevitable transaction is never retried, and the
+  ; others don't lose their updates.
+  (let [r         (ref 0)
+        attempts  (atom 0)
+        started   (promise)
+        n-threads 4
+        n-iters   200
+        pool      (Executors/newFixedThreadPool n-threads)
+        task      (fn []
+                    @started
+                    (dotimes [_i n-iters]
+                      (dosync (commute r inc))
+                      (dosync (alter r inc))))
+        fs        (doall (for [_i (range n-threads)] (.submit pool ^Callable task)))
+        result    (sync {:inevitable true}
+                    (swap! attempts inc)
+                    (deliver started true)
+                    (let [x @r]
+                      (Thread/sleep 100)
+                      (commute r + 1000)
+                      (- @r x)))]
+    (doseq [f fs]
+      (.get f))
+    (.shutdown pool)
+    (is (= 1 @attempts))
+    (is (= 1000 result))
+    (is (= (+ 1000 (* 2 n-threads n-iters)) @r))))
+
+(deftest inevitable-blocks-combined-commutes
+  ; A commute on a combined ref waits for the inevitable transaction that
+  ; writes it, instead of retrying until it has finished.
+  (let [r       (ref 0 :combine true)
+        owned   (promise)
+        t       (future
+                  (sync {:inevitable true}
+                    (alter r + 10)
+                    (deliver owned true)
+                    (Thread/sleep 200)))]
+    @owned
+    (is (= 11 (sync {:retry-limit 2} (commute r inc))))
+    @t
+    (is (= 11 @r))))
@@ -0,0 +1,115 @@
+(ns chocola.transactions-stats
+  (:require [clojure.test :refer :all]
+            [chocola.core])
+  (:import [clojure.lang TransactionStats RefProfiler]
+           [java.util.concurrent Executors]))
+
+; Instrumentation of transactions (see TransactionStats).
+
+; Note: clojure.test uses transactions itself to count assertions, so tests
+; reset the stats before running their own transactions.
+
+(defn- with-stats [f]
+  (TransactionStats/setEnabled true)
+  (try
+    (f)
+    (finally
+      (TransactionStats/setEnabled false))))
+
+(use-fixtures :each with-stats)
+
+(deftest stats-counts
+  (TransactionStats/reset)
+  (let [a (ref 0)]
+    (dotimes [i 10]
+      (dosync (alter a inc)))
+    (sync {:read-only true} @a)
+    (let [s (TransactionStats/snapshot)]
+      (is (= 11 (:transactions s)))
+      (is (= 11 (:commits s)))
+      (is (= 11 (:attempts s)))
+      (is (= 0 (:retry-limit-failures s)))
+      (is (every? zero? (vals (:retries s))))
+      ; 10 commits with one ref (bucket 1), 1 read-only (bucket 0)
+      (is (= [1 10] (:write-set-size s))))))
+
+(deftest stats-retries
+  (let [a       (ref 0)
+        n-iters 500
+        pool    (Executors/newFixedThreadPool 4)
+        task    (fn []
+                  (dotimes [i n-iters]
+                    (dosync (alter a inc) (Thread/yield))))]
+    (TransactionStats/reset)
+    (doseq [r (.invokeAll pool (replicate 4 task))]
+      (.get r))
+    (.shutdown pool)
+    (let [s (TransactionStats/snapshot)]
+      (is (= (* 4 n-iters) @a))
+      (is (= (* 4 n-iters) (:transactions s) (:commits s)))
+      (is (= (:attempts s) (+ (:commits s) (reduce + (vals (:retries s))))))
+      (is (= (:transactions s) (reduce + (:attempts-per-transaction s)))))))
+
+(defn- conflict!
+  "Commit r in another thread, so that writing it in the current transaction
+  conflicts."
+  [r]
+  (doto (Thread. #(dosync (alter r inc)))
+    (.start)
+    (.join)))
+
+(deftest stats-outcomes
+  ; Transactions that throw, time out or reach the retry limit are counted
+  ; too, each under their own outcome.
+  (TransactionStats/reset)
+  (let [a (ref 0 :validator (fn [v] (< v 10)))
+        b (ref 0)]
+    (is (thrown? ArithmeticException (dosync (alter a inc) (/ 1 0))))
+    (is (thrown? IllegalStateException (dosync (ref-set a 10))))
+    (is (thrown? java.util.concurrent.ExecutionException
+                 (dosync @(future (/ 1 0)))))
+    (is (thrown? clojure.lang.LockingTransaction$TransactionFailedException
+                 (sync {:retry-limit 2} (conflict! b) (alter b inc))))
+    (is (thrown? clojure.lang.LockingTransaction$TransactionFailedException
+                 (sync {:timeout-ms 50}
+                   (Thread/sleep 20) (conflict! b) (alter b inc))))
+    (let [s (TransactionStats/snapshot)]
+      (is (= 5 (- (:transactions s) (:commits s))))
+      (is (= 3 (:exceptions s)))
+      (is (= 1 (:timeouts s)))
+      (is (= 1 (:retry-limit-failures s)))
+      ; the last attempt of the two that failed was retried too
+      (is (= (:attempts s)
+             (- (+ (:transactions s) (reduce + (vals (:retries s)))) 2))))))
+
+(deftest stats-disabled
+  (TransactionStats/setEnabled false)
+  (TransactionStats/reset)
+  (let [a (ref 0)]
+    (dosync (alter a inc))
+    (is (= 0 (:transactions (TransactionStats/snapshot))))))
+
+; === CONFLICT PROFILER ===
+
+(deftest ref-profiler
+  (RefProfiler/reset)
+  (RefProfiler/setSampleRate 1)
+  (try
+    (let [hot     (ref 0 :meta {:name :hot})
+          cold    (ref 0 :meta {:name :cold})
+          n-iters 500
+          pool    (Executors/newFixedThreadPool 4)
+          task    (fn []
+                    (dotimes [i n-iters]
+                      (dosync (alter hot inc) (Thread/yield))))]
+      (dosync (alter cold inc))
+      (doseq [r (.invokeAll pool (replicate 4 task))]
+        (.get r))
+      (.shutdown pool)
+      (is (= (* 4 n-iters) @hot))
+      (let [report (RefProfiler/report 10)]
+        (is (every? #(= {:name :hot} (:meta %)) report))
+        (is (every? pos? (map :total report)))
+        (is (empty? (RefProfiler/report 0)))))
+    (finally
+      (RefProfiler/setSampleRate 0))))